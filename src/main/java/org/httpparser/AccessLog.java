@@ -0,0 +1,250 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log that never blocks the thread that logs a request.
+ * <p/>
+ * Requests are handed to a background writer in preallocated records, which only hold references to the strings
+ * that the request was parsed into. The records go round between two {@link BoundedQueue}s, one of free records
+ * and one of records waiting to be written, so logging a request never allocates or locks. The writer formats the
+ * records in batches straight into a memory mapped file of a fixed size. When the end of the file is reached the
+ * writer wraps around to the start, so the file always holds the most recent requests.
+ * <p/>
+ * A single zero byte is written after the newest record, and the rest of the file is zero filled when it wraps,
+ * so the first zero byte in the file marks where the newest records end. Whatever follows it up to the next zero
+ * byte is left over from the previous pass through the file, and starts with a partially overwritten record.
+ * <p/>
+ * If the queue is full, or the log has been closed, the request is not logged and is counted in
+ * {@link #getDropped()}. A request that is logged while {@link #close()} is running can be lost without being
+ * counted.
+ * <p/>
+ * Each record is a line of the form <code>time verb path version host</code>, where time is in milliseconds
+ * since the epoch.
+ *
+ * @author Stuart Douglas
+ */
+public class AccessLog implements Closeable {
+
+    /**
+     * How long the writer sleeps when there is nothing to write
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final BoundedQueue<Record> free;
+    /**
+     * This can hold every record, so adding a record that was taken from the free queue never fails
+     */
+    private final BoundedQueue<Record> queued;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * @param file      The file to log to. It is created if needed, and its contents are overwritten.
+     * @param fileSize  The size of the file
+     * @param queueSize The number of requests that can be waiting to be written, this is rounded up to a power of two
+     */
+    public AccessLog(final File file, final int fileSize, final int queueSize) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(fileSize);
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        this.free = new BoundedQueue<Record>(queueSize);
+        this.queued = new BoundedQueue<Record>(queueSize);
+        for (int i = 0; i < free.capacity(); ++i) {
+            free.offer(new Record());
+        }
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the request to be logged. This never blocks.
+     *
+     * @return false if the queue was full or the log has been closed, in which case the request is not logged
+     */
+    public boolean log(final HttpExchangeBuilder exchange) {
+        if (closed) {
+            //the writer has stopped, so this would never be written
+            dropped.incrementAndGet();
+            return false;
+        }
+        final Record record = free.poll();
+        if (record == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        record.time = System.currentTimeMillis();
+        record.verb = exchange.verb;
+        record.path = exchange.path;
+        record.httpVersion = exchange.httpVersion;
+        record.host = exchange.standardHeaders.get("Host");
+        queued.offer(record);
+        return true;
+    }
+
+    /**
+     * @return The number of requests that were not logged because the queue was full or the log was closed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes out everything that has been queued, and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        file.close();
+    }
+
+    private void writeRecords() {
+        while (true) {
+            //read closed first, so that once it is set we still drain everything that was queued before it
+            final boolean last = closed;
+            int written = 0;
+            while (writeRecord()) {
+                ++written;
+            }
+            if (last) {
+                return;
+            } else if (written == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return false if there was nothing to write
+     */
+    private boolean writeRecord() {
+        final Record record = queued.poll();
+        if (record == null) {
+            return false;
+        }
+        //there always has to be room for the end marker
+        final int length = record.length() + 1;
+        if (length > buffer.capacity()) {
+            //this can never fit, so it is dropped rather than wrapping forever
+            dropped.incrementAndGet();
+        } else {
+            if (buffer.remaining() < length) {
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                buffer.clear();
+            }
+            putDecimal(record.time);
+            buffer.put((byte) ' ');
+            putString(record.verb);
+            buffer.put((byte) ' ');
+            putString(record.path);
+            buffer.put((byte) ' ');
+            putString(record.httpVersion);
+            buffer.put((byte) ' ');
+            putString(record.host);
+            buffer.put((byte) '\n');
+            //the end marker, which the next record overwrites
+            buffer.put(buffer.position(), (byte) 0);
+        }
+        record.clear();
+        free.offer(record);
+        return true;
+    }
+
+    private void putString(final String value) {
+        if (value == null) {
+            buffer.put((byte) '-');
+            return;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            //a zero byte would look like the end marker
+            buffer.put(c == 0 ? (byte) '?' : (byte) c);
+        }
+    }
+
+    private void putDecimal(final long value) {
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * A queued request. Records are reused, so this holds no more than the references to what was parsed.
+     */
+    private static final class Record {
+        long time;
+        String verb;
+        String path;
+        String httpVersion;
+        String host;
+
+        int length() {
+            //the time is at most 19 digits, plus 4 separators
+            return 23 + length(verb) + length(path) + length(httpVersion) + length(host);
+        }
+
+        void clear() {
+            verb = null;
+            path = null;
+            httpVersion = null;
+            host = null;
+        }
+
+        private static int length(final String value) {
+            return value == null ? 1 : value.length();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock free multi producer, multi consumer queue, based on Dmitry Vyukov's bounded queue. Each slot has a
+ * sequence number that tells producers and consumers whose turn it is, so neither side ever waits for the other
+ * apart from retrying a failed compare and set.
+ *
+ * @author Stuart Douglas
+ */
+final class BoundedQueue<E> {
+
+    private final AtomicReferenceArray<E> elements;
+    /**
+     * A slot can be written by the producer that claims position p when its sequence is p, and read by the consumer
+     * that claims position p once its sequence is p + 1.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity The capacity, this is rounded up to a power of two
+     */
+    BoundedQueue(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(final E element) {
+        long pos = tail.get();
+        while (true) {
+            final int slot = (int) pos & mask;
+            final long difference = sequences.get(slot) - pos;
+            if (difference == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(slot, element);
+                    sequences.lazySet(slot, pos + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            pos = tail.get();
+        }
+    }
+
+    /**
+     * @return The head of the queue, or null if it is empty
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            final int slot = (int) pos & mask;
+            final long difference = sequences.get(slot) - (pos + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final E element = elements.get(slot);
+                    elements.lazySet(slot, null);
+                    sequences.lazySet(slot, pos + mask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            pos = head.get();
+        }
+    }
+
+    /**
+     * Moves up to <code>max</code> elements into the array
+     *
+     * @return The number of elements that were moved
+     */
+    int drainTo(final E[] batch, final int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            batch[count++] = element;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of elements, which is only an estimate while other threads are using the queue
+     */
+    int size() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
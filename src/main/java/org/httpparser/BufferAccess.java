@@ -0,0 +1,163 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import sun.misc.Unsafe;
+
+/**
+ * Raw access to the contents of a {@link ByteBuffer}. The tokenizers use this so that reading a byte is a single
+ * memory load, rather than a virtual call to {@link ByteBuffer#get()} that re-checks the limit every time.
+ * <p/>
+ * A buffer is addressed as a base object plus an address, as understood by {@link Unsafe#getByte(Object, long)}.
+ * For direct buffers the base is null and the address is the native address of the memory, for heap buffers
+ * the base is the backing array. In both cases the address returned by {@link #address(ByteBuffer)} refers to
+ * index 0 of the buffer, so the byte at index i is at <code>address + i</code>.
+ * <p/>
+ * The bounds are checked once by {@link #checkBounds(ByteBuffer, int)}, after which callers must not read more
+ * than the number of bytes that was checked.
+ * <p/>
+ * If {@link Unsafe} is not available then all reads fall back to absolute gets on the buffer.
+ *
+ * @author Stuart Douglas
+ */
+final class BufferAccess {
+
+    static final Unsafe UNSAFE;
+
+    /**
+     * If it is safe to read a long from an address that is not 8 byte aligned
+     */
+    static final boolean UNALIGNED;
+
+    private static final long BYTE_ARRAY_BASE_OFFSET;
+    private static final long ADDRESS_OFFSET;
+    private static final long HEAP_ARRAY_OFFSET;
+    private static final long HEAP_ARRAY_OFFSET_OFFSET;
+
+    static {
+        Unsafe unsafe = null;
+        long byteArrayBase = 0;
+        long address = 0;
+        long heapArray = 0;
+        long heapArrayOffset = 0;
+        try {
+            unsafe = AccessController.doPrivileged(new PrivilegedAction<Unsafe>() {
+                @Override
+                public Unsafe run() {
+                    try {
+                        final Field field = Unsafe.class.getDeclaredField("theUnsafe");
+                        field.setAccessible(true);
+                        return (Unsafe) field.get(null);
+                    } catch (Exception e) {
+                        return null;
+                    }
+                }
+            });
+            if (unsafe != null) {
+                byteArrayBase = unsafe.arrayBaseOffset(byte[].class);
+                address = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+                heapArray = unsafe.objectFieldOffset(ByteBuffer.class.getDeclaredField("hb"));
+                heapArrayOffset = unsafe.objectFieldOffset(ByteBuffer.class.getDeclaredField("offset"));
+            }
+        } catch (Throwable e) {
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        BYTE_ARRAY_BASE_OFFSET = byteArrayBase;
+        ADDRESS_OFFSET = address;
+        HEAP_ARRAY_OFFSET = heapArray;
+        HEAP_ARRAY_OFFSET_OFFSET = heapArrayOffset;
+
+        final String arch = AccessController.doPrivileged(new PrivilegedAction<String>() {
+            @Override
+            public String run() {
+                return System.getProperty("os.arch", "");
+            }
+        });
+        UNALIGNED = unsafe != null && arch.matches("^(i[3-6]86|x86(_64)?|x64|amd64|aarch64)$");
+    }
+
+    private BufferAccess() {
+    }
+
+    /**
+     * Makes sure that the buffer actually contains the number of bytes the caller has asked us to read.
+     */
+    static void checkBounds(final ByteBuffer buffer, final int noBytes) {
+        if (noBytes < 0 || noBytes > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    static Object base(final ByteBuffer buffer) {
+        if (UNSAFE == null || buffer.isDirect()) {
+            return null;
+        }
+        return UNSAFE.getObject(buffer, HEAP_ARRAY_OFFSET);
+    }
+
+    static long address(final ByteBuffer buffer) {
+        if (UNSAFE == null) {
+            return 0;
+        }
+        if (buffer.isDirect()) {
+            return UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+        }
+        return BYTE_ARRAY_BASE_OFFSET + UNSAFE.getInt(buffer, HEAP_ARRAY_OFFSET_OFFSET);
+    }
+
+    static byte getByte(final ByteBuffer buffer, final Object base, final long address, final int index) {
+        if (UNSAFE == null) {
+            return buffer.get(index);
+        }
+        return UNSAFE.getByte(base, address + index);
+    }
+
+    /**
+     * Compares the buffer contents starting at <code>index</code> to <code>bytes</code> starting at <code>pos</code>
+     * 8 bytes at a time, reading no more than <code>max</code> bytes from the buffer.
+     *
+     * @return The number of bytes that matched, this will always be a multiple of 8
+     */
+    static int matchWords(final Object base, final long address, final int index, final byte[] bytes, final int pos, final int max) {
+        if (!UNALIGNED) {
+            return 0;
+        }
+        final int limit = Math.min(max, bytes.length - pos) - 8;
+        int matched = 0;
+        while (matched <= limit) {
+            if (UNSAFE.getLong(base, address + index + matched) != UNSAFE.getLong(bytes, BYTE_ARRAY_BASE_OFFSET + pos + matched)) {
+                break;
+            }
+            matched += 8;
+        }
+        return matched;
+    }
+}
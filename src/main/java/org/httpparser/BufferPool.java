@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size direct buffers for connection reads. This class is thread safe.
+ * <p/>
+ * Buffers are cut from large slabs, so there is only one expensive direct allocation per slab. Each thread has its
+ * own cache of free buffers that it can take from and return to without any synchronization. When a cache is
+ * empty it takes a batch from a shared lock free pool, and when it is full it moves a batch back, so buffers flow
+ * between threads that read more than they release and vice versa. Slabs are only referenced by their buffers, so
+ * a slab is freed once all of its buffers have been lost along with a dead thread's cache.
+ * <p/>
+ * Buffers are reference counted, so a buffer that is still referenced by zero copy spans, e.g. a
+ * {@link ProxyRequestHead}, can be retained and is only returned to the pool once every span has released it. A
+ * read buffer should otherwise be released as soon as {@link Tokenizer#handle} has consumed it.
+ * <p/>
+ * With leak detection on, every buffer that is allocated is tracked with a weak reference. If a buffer becomes
+ * unreachable without being released it is counted in {@link #getLeakCount()}, the stack trace of where it was
+ * allocated is passed to {@link #leakDetected(Throwable)}, and its memory goes back to the pool. This costs an allocation per buffer, so it is meant for debugging.
+ *
+ * @author Stuart Douglas
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final int cacheSize;
+    private final boolean leakDetection;
+
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache(cacheSize);
+        }
+    };
+    private final ConcurrentLinkedQueue<PooledBuffer> shared = new ConcurrentLinkedQueue<PooledBuffer>();
+    private final AtomicLong slabs = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private final ReferenceQueue<PooledBuffer> leakQueue;
+    private final Set<LeakTracker> trackers;
+
+    /**
+     * @param bufferSize     The size of each buffer
+     * @param buffersPerSlab The number of buffers that are allocated at once
+     * @param cacheSize      The number of free buffers each thread keeps
+     * @param leakDetection  If buffers that are never released should be reported
+     */
+    public BufferPool(final int bufferSize, final int buffersPerSlab, final int cacheSize, final boolean leakDetection) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.cacheSize = Math.max(cacheSize, 2);
+        this.leakDetection = leakDetection;
+        this.leakQueue = leakDetection ? new ReferenceQueue<PooledBuffer>() : null;
+        this.trackers = leakDetection ? Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>()) : null;
+    }
+
+    /**
+     * @return A cleared buffer with a reference count of one
+     */
+    public PooledBuffer allocate() {
+        final Cache cache = caches.get();
+        if (cache.count == 0) {
+            refill(cache);
+        }
+        final PooledBuffer buffer = cache.buffers[--cache.count];
+        cache.buffers[cache.count] = null;
+        buffer.references.set(1);
+        if (leakDetection) {
+            reportLeaks();
+            buffer.tracker = new LeakTracker(buffer, leakQueue);
+            trackers.add(buffer.tracker);
+        }
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return The number of slabs that have been allocated
+     */
+    public long getSlabCount() {
+        return slabs.get();
+    }
+
+    /**
+     * @return The number of buffers that were found to have been leaked
+     */
+    public long getLeakCount() {
+        if (leakDetection) {
+            reportLeaks();
+        }
+        return leaks.get();
+    }
+
+    /**
+     * Called when leak detection finds a buffer that was never released. This does nothing, it can be overridden to
+     * log where the buffer was allocated.
+     *
+     * @param allocated The stack trace of where the buffer was allocated
+     */
+    protected void leakDetected(final Throwable allocated) {
+    }
+
+    private void refill(final Cache cache) {
+        //take half a cache at a time, so a thread that only allocates does not go to the shared pool every time
+        for (int i = 0; i < cacheSize / 2; ++i) {
+            final PooledBuffer buffer = shared.poll();
+            if (buffer == null) {
+                break;
+            }
+            cache.buffers[cache.count++] = buffer;
+        }
+        if (cache.count == 0) {
+            final ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+            slabs.incrementAndGet();
+            for (int i = 0; i < buffersPerSlab; ++i) {
+                slab.limit((i + 1) * bufferSize);
+                slab.position(i * bufferSize);
+                final PooledBuffer buffer = new PooledBuffer(this, slab.slice());
+                if (cache.count < cacheSize / 2) {
+                    cache.buffers[cache.count++] = buffer;
+                } else {
+                    shared.add(buffer);
+                }
+            }
+        }
+    }
+
+    void free(final PooledBuffer buffer) {
+        if (buffer.tracker != null) {
+            trackers.remove(buffer.tracker);
+            buffer.tracker.clear();
+            buffer.tracker = null;
+        }
+        buffer.buffer.clear();
+        final Cache cache = caches.get();
+        if (cache.count == cacheSize) {
+            //move the older half to the shared pool
+            final int moved = cacheSize / 2;
+            for (int i = 0; i < moved; ++i) {
+                shared.add(cache.buffers[i]);
+            }
+            System.arraycopy(cache.buffers, moved, cache.buffers, 0, cache.count - moved);
+            cache.count -= moved;
+            for (int i = cache.count; i < cacheSize; ++i) {
+                cache.buffers[i] = null;
+            }
+        }
+        cache.buffers[cache.count++] = buffer;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                leaks.incrementAndGet();
+                leakDetected(tracker.allocated);
+                //the buffer itself is still good, it is just its handle that was lost
+                shared.add(new PooledBuffer(this, tracker.buffer));
+            }
+        }
+    }
+
+    private static final class Cache {
+        final PooledBuffer[] buffers;
+        int count;
+
+        Cache(final int size) {
+            this.buffers = new PooledBuffer[size];
+        }
+    }
+
+    private static final class LeakTracker extends WeakReference<PooledBuffer> {
+        final ByteBuffer buffer;
+        final Throwable allocated = new Throwable("A pooled buffer was never released, it was allocated here");
+
+        LeakTracker(final PooledBuffer referent, final ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            this.buffer = referent.buffer;
+        }
+    }
+
+    /**
+     * A buffer from the pool
+     */
+    public static final class PooledBuffer {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger();
+        private LeakTracker tracker;
+
+        PooledBuffer(final BufferPool pool, final ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return The buffer, which must not be used once it has been released
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * Adds a reference, e.g. for a span of the buffer that outlives the read
+         */
+        public void retain() {
+            if (references.getAndIncrement() <= 0) {
+                references.getAndDecrement();
+                throw new IllegalStateException("Buffer has already been released");
+            }
+        }
+
+        /**
+         * Drops a reference, returning the buffer to the pool once there are none left
+         */
+        public void release() {
+            final int remaining = references.decrementAndGet();
+            if (remaining == 0) {
+                pool.free(this);
+            } else if (remaining < 0) {
+                references.incrementAndGet();
+                throw new IllegalStateException("Buffer has already been released");
+            }
+        }
+    }
+}
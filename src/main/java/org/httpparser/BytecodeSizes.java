@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the size of the bytecode of each method from a class file. The class file writer does not expose
+ * this, so we read it back out of the generated class instead.
+ *
+ * @author Stuart Douglas
+ */
+final class BytecodeSizes {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    private BytecodeSizes() {
+    }
+
+    /**
+     * @return a map of method name to the length of its code attribute, in the order the methods appear
+     *         in the class file. Methods without code (e.g. abstract methods) are not included.
+     */
+    static Map<String, Integer> read(final byte[] classFile) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+            in.readInt(); //magic
+            in.readUnsignedShort(); //minor
+            in.readUnsignedShort(); //major
+            final int constantPoolCount = in.readUnsignedShort();
+            final String[] utf8 = new String[constantPoolCount];
+            for (int i = 1; i < constantPoolCount; ++i) {
+                final int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case CONSTANT_UTF8:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case CONSTANT_LONG:
+                    case CONSTANT_DOUBLE:
+                        in.readLong();
+                        //these take up two entries
+                        ++i;
+                        break;
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                    case CONSTANT_METHOD_TYPE:
+                        in.readUnsignedShort();
+                        break;
+                    case CONSTANT_METHOD_HANDLE:
+                        in.readUnsignedByte();
+                        in.readUnsignedShort();
+                        break;
+                    default:
+                        //integer, float, field, method and interface method refs, name and type, invoke dynamic
+                        in.readInt();
+                        break;
+                }
+            }
+            in.readUnsignedShort(); //access flags
+            in.readUnsignedShort(); //this class
+            in.readUnsignedShort(); //super class
+            final int interfaces = in.readUnsignedShort();
+            for (int i = 0; i < interfaces; ++i) {
+                in.readUnsignedShort();
+            }
+            final int fields = in.readUnsignedShort();
+            for (int i = 0; i < fields; ++i) {
+                in.readUnsignedShort(); //access flags
+                in.readUnsignedShort(); //name
+                in.readUnsignedShort(); //descriptor
+                skipAttributes(in);
+            }
+            final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+            final int methods = in.readUnsignedShort();
+            for (int i = 0; i < methods; ++i) {
+                in.readUnsignedShort(); //access flags
+                final String name = utf8[in.readUnsignedShort()];
+                in.readUnsignedShort(); //descriptor
+                final int attributes = in.readUnsignedShort();
+                for (int j = 0; j < attributes; ++j) {
+                    final String attributeName = utf8[in.readUnsignedShort()];
+                    final int length = in.readInt();
+                    if (attributeName.equals("Code")) {
+                        in.readUnsignedShort(); //max stack
+                        in.readUnsignedShort(); //max locals
+                        final int codeLength = in.readInt();
+                        result.put(name, codeLength);
+                        skip(in, length - 8);
+                    } else {
+                        skip(in, length);
+                    }
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void skipAttributes(final DataInputStream in) throws IOException {
+        final int attributes = in.readUnsignedShort();
+        for (int j = 0; j < attributes; ++j) {
+            in.readUnsignedShort();
+            skip(in, in.readInt());
+        }
+    }
+
+    private static void skip(final DataInputStream in, final int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new IOException("Truncated class file");
+            }
+            remaining -= skipped;
+        }
+    }
+}
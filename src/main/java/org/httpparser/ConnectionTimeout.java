@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+/**
+ * The idle, request head and read timeouts of a connection, using a single {@link TimerWheel} entry. This is meant
+ * to be extended by the connection itself, so the timeouts do not cost a separate object per connection.
+ * <p/>
+ * Reads only record the time, they do not touch the wheel. The wheel entry is scheduled for the earliest deadline
+ * the connection could have, and when it fires the real deadline is worked out from the time of the last read and
+ * the progress of the {@link TokenState}. If the connection has made progress since, the entry is just scheduled
+ * again for the new deadline.
+ * <ul>
+ * <li>An idle connection, that has not read any of its next request, times out {@link #IDLE} after the idle timeout</li>
+ * <li>A request head that has not been completely read within the header timeout of its first byte times out {@link #HEADERS}</li>
+ * <li>A connection in the middle of a request that has not read anything for the read timeout times out {@link #READ}</li>
+ * </ul>
+ * While a request is being handled and nothing is expected from the client the timeout should be cancelled.
+ *
+ * @author Stuart Douglas
+ */
+public abstract class ConnectionTimeout extends TimerWheel.Timeout {
+
+    public static final int IDLE = 0;
+    public static final int HEADERS = 1;
+    public static final int READ = 2;
+
+    private final TimerWheel wheel;
+    private final TokenState state;
+    private final long idleTimeout;
+    private final long headerTimeout;
+    private final long readTimeout;
+
+    /**
+     * The time the first byte of the current request was read, or -1 if the connection is idle
+     */
+    private long requestStart = -1;
+    private long lastRead;
+
+    /**
+     * @param state The token state of the connection, which is used to tell if the request head is complete
+     */
+    protected ConnectionTimeout(final TimerWheel wheel, final TokenState state, final long idleTimeout, final long headerTimeout, final long readTimeout) {
+        this.wheel = wheel;
+        this.state = state;
+        this.idleTimeout = idleTimeout;
+        this.headerTimeout = headerTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Called with the kind of timeout once the connection has timed out, which should close the connection. The
+     * timeout is no longer scheduled.
+     */
+    protected abstract void timedOut(int kind);
+
+    /**
+     * Starts the idle timeout, when the connection is opened or once a response has been sent
+     */
+    public void idle(final long now) {
+        requestStart = -1;
+        lastRead = now;
+        schedule(now + idleTimeout);
+    }
+
+    /**
+     * Records that bytes have been read. This does not touch the wheel, unless this is the first read of a request.
+     */
+    public void bytesRead(final long now) {
+        lastRead = now;
+        if (requestStart == -1) {
+            requestStart = now;
+            schedule(now + Math.min(headerTimeout, readTimeout));
+        } else if (!isScheduled()) {
+            //the timeout was cancelled while the last request was handled
+            schedule(deadline());
+        }
+    }
+
+    /**
+     * Stops the timeouts while the request is handled
+     */
+    public void cancel() {
+        wheel.cancel(this);
+    }
+
+    @Override
+    protected void expired(final long now) {
+        final long deadline = deadline();
+        if (deadline > now) {
+            wheel.schedule(this, deadline);
+        } else if (requestStart == -1) {
+            timedOut(IDLE);
+        } else if (headerDeadline() == deadline) {
+            timedOut(HEADERS);
+        } else {
+            timedOut(READ);
+        }
+    }
+
+    private long deadline() {
+        if (requestStart == -1) {
+            return lastRead + idleTimeout;
+        }
+        return Math.min(lastRead + readTimeout, headerDeadline());
+    }
+
+    /**
+     * @return The deadline for the request head, or {@link Long#MAX_VALUE} once it has been read
+     */
+    private long headerDeadline() {
+        if (state.state == TokenState.PARSE_COMPLETE || state.state == TokenState.PARSE_STOPPED) {
+            return Long.MAX_VALUE;
+        }
+        return requestStart + headerTimeout;
+    }
+
+    /**
+     * Only moves the entry if the new deadline is earlier, a later deadline is picked up when the entry fires
+     */
+    private void schedule(final long deadline) {
+        if (!isScheduled() || deadline < getDeadline()) {
+            wheel.schedule(this, deadline);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xnio.channels.SuspendableReadChannel;
+
+/**
+ * Hands parsed requests from the I/O threads to worker threads, with backpressure. This class is thread safe.
+ * <p/>
+ * Requests go through a bounded lock free queue. Rather than submitting a task to the executor for every request,
+ * up to <code>concurrency</code> drain tasks are started, each of which handles requests in batches until the queue
+ * is empty, so a burst of requests costs a few wakeups rather than one each.
+ * <p/>
+ * Once the queue is three quarters full, reads are suspended on the channel of every request that is dispatched,
+ * so no more requests are parsed on those connections, and they are resumed once the workers have brought the queue
+ * down to a quarter full. If the queue is full the request is kept in an overflow list until there is room, which is
+ * bounded by the number of connections, as the channel that the request came from has had its reads suspended. Only
+ * the overflow list takes a lock, as it is only used when the workers are already well behind.
+ *
+ * @author Stuart Douglas
+ */
+public class Dispatcher<T> {
+
+    private final Executor executor;
+    private final DispatchHandler<T> handler;
+    private final BoundedQueue<T> queue;
+    private final int batchSize;
+    private final int concurrency;
+    private final int highWater;
+    private final int lowWater;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final ConcurrentLinkedQueue<T> overflow = new ConcurrentLinkedQueue<T>();
+    private final ConcurrentLinkedQueue<SuspendableReadChannel> suspended = new ConcurrentLinkedQueue<SuspendableReadChannel>();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param executor    The worker threads
+     * @param capacity    The number of requests that can be waiting to be handled
+     * @param batchSize   The number of requests a drain task takes from the queue at a time
+     * @param concurrency The maximum number of requests that are handled at once
+     */
+    public Dispatcher(final Executor executor, final DispatchHandler<T> handler, final int capacity, final int batchSize, final int concurrency) {
+        this.executor = executor;
+        this.handler = handler;
+        this.queue = new BoundedQueue<T>(capacity);
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.highWater = queue.capacity() * 3 / 4;
+        this.lowWater = queue.capacity() / 4;
+    }
+
+    /**
+     * Dispatches a request. This never blocks, but if the workers are falling behind it suspends reads on the channel.
+     * If the executor rejects a drain task its exception is thrown, and the request stays queued for the next drain.
+     *
+     * @param channel The channel the request was read from
+     */
+    public void dispatch(final T request, final SuspendableReadChannel channel) {
+        if (!overflow.isEmpty() || !queue.offer(request)) {
+            synchronized (overflow) {
+                //the workers may have made room, but requests that overflowed earlier have to go first
+                if (!overflow.isEmpty() || !queue.offer(request)) {
+                    overflow.add(request);
+                }
+            }
+            suspend(channel);
+        } else if (queue.size() >= highWater) {
+            suspend(channel);
+        }
+        startDrain();
+    }
+
+    /**
+     * @return The number of requests waiting to be handled
+     */
+    public int getQueued() {
+        return queue.size() + overflow.size();
+    }
+
+    private void suspend(final SuspendableReadChannel channel) {
+        channel.suspendReads();
+        suspended.add(channel);
+        //the workers may have emptied the queue before the channel was added, in which case nobody else will resume it
+        if (getQueued() <= lowWater) {
+            resumeReads();
+        }
+    }
+
+    private void startDrain() {
+        if (claimDrain()) {
+            try {
+                executor.execute(drain);
+            } catch (RuntimeException e) {
+                running.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if there were fewer than <code>concurrency</code> drain tasks, and the caller is now one of them
+     */
+    private boolean claimDrain() {
+        int current;
+        do {
+            current = running.get();
+            if (current >= concurrency) {
+                return false;
+            }
+        } while (!running.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        final T[] batch = (T[]) new Object[batchSize];
+        do {
+            try {
+                drainQueue(batch);
+            } finally {
+                running.decrementAndGet();
+                resumeReads();
+            }
+            //a request that was queued before we stopped running may not have started another drain task
+        } while (getQueued() > 0 && claimDrain());
+    }
+
+    private void drainQueue(final T[] batch) {
+        int count;
+        while ((count = queue.drainTo(batch, batchSize)) > 0 || refill()) {
+            refill();
+            if (getQueued() <= lowWater) {
+                resumeReads();
+            }
+            for (int i = 0; i < count; ++i) {
+                final T request = batch[i];
+                batch[i] = null;
+                try {
+                    handler.handle(request);
+                } catch (Throwable t) {
+                    //a failing request must not stop the requests behind it from being handled
+                    final Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves overflowed requests into the queue, in order
+     *
+     * @return true if any requests were moved
+     */
+    private boolean refill() {
+        if (overflow.isEmpty()) {
+            return false;
+        }
+        boolean moved = false;
+        synchronized (overflow) {
+            T request;
+            while ((request = overflow.peek()) != null && queue.offer(request)) {
+                overflow.poll();
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    private void resumeReads() {
+        SuspendableReadChannel channel;
+        while (getQueued() <= lowWater && (channel = suspended.poll()) != null) {
+            channel.resumeReads();
+        }
+    }
+}
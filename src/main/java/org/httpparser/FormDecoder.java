@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An incremental decoder for <code>application/x-www-form-urlencoded</code> bodies. This class is mutable and not
+ * thread safe, but it can be reused for another body after {@link #reset()}.
+ * <p/>
+ * The body is passed in as it is read, in buffers of any size. The bytes are copied as they are, and only the
+ * positions of the names and values are recorded, so nothing is decoded until a field is actually read. Names are
+ * matched against the undecoded bytes, so looking up a field does not decode the fields before it. Values are
+ * decoded as UTF-8.
+ *
+ * @author Stuart Douglas
+ */
+public class FormDecoder {
+
+    public static final int DEFAULT_MAX_LENGTH = 2 * 1024 * 1024;
+
+    private static final int INITIAL_SIZE = 256;
+
+    private final int maxLength;
+
+    /**
+     * The undecoded body
+     */
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int length;
+
+    /**
+     * The start, the position of the '=' (or the end if there is none) and the end of each complete field
+     */
+    private int[] fields = new int[3 * 8];
+    private int fieldCount;
+
+    /**
+     * The start of the field that is being read, and its '=' or -1 if we have not seen one yet
+     */
+    private int fieldStart;
+    private int equals = -1;
+
+    private byte[] scratch = new byte[INITIAL_SIZE];
+
+    public FormDecoder() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxLength The largest body that will be accepted
+     */
+    public FormDecoder(final int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads all the remaining bytes in the buffer, moving its position to its limit
+     *
+     * @throws IllegalStateException if the body is larger than the maximum length
+     */
+    public void parse(final ByteBuffer buffer) {
+        final int remaining = buffer.remaining();
+        if (remaining > maxLength - length) {
+            throw new IllegalStateException("Form body is larger than " + maxLength + " bytes");
+        }
+        if (length + remaining > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.min(Math.max(length + remaining, bytes.length * 2), maxLength));
+        }
+        final int start = length;
+        buffer.get(bytes, start, remaining);
+        length += remaining;
+        final byte[] bytes = this.bytes;
+        for (int i = start; i < length; ++i) {
+            final byte b = bytes[i];
+            if (b == '&') {
+                endField(i);
+                fieldStart = i + 1;
+                equals = -1;
+            } else if (b == '=' && equals == -1) {
+                equals = i;
+            }
+        }
+    }
+
+    /**
+     * Clears the state so the decoder can be used for another body
+     */
+    public void reset() {
+        length = 0;
+        fieldCount = 0;
+        fieldStart = 0;
+        equals = -1;
+    }
+
+    /**
+     * @return The number of fields that have been read so far, including the last field if it may be incomplete
+     */
+    public int getFieldCount() {
+        return fieldCount + (length > fieldStart ? 1 : 0);
+    }
+
+    public String getName(final int field) {
+        final int index = index(field);
+        return decode(fieldStart(index), nameEnd(index));
+    }
+
+    /**
+     * @return The decoded value, which is the empty string if the field has no '='
+     */
+    public String getValue(final int field) {
+        final int index = index(field);
+        final int nameEnd = nameEnd(index);
+        final int end = fieldEnd(index);
+        return nameEnd == end ? "" : decode(nameEnd + 1, end);
+    }
+
+    /**
+     * @return The value of the first field with the given name, or null if there is none
+     */
+    public String getFirst(final String name) {
+        final int count = getFieldCount();
+        for (int i = 0; i < count; ++i) {
+            final int index = index(i);
+            if (matches(fieldStart(index), nameEnd(index), name)) {
+                return getValue(i);
+            }
+        }
+        return null;
+    }
+
+    private void endField(final int end) {
+        if (end == fieldStart) {
+            //empty fields, e.g. from a trailing '&', are ignored
+            return;
+        }
+        if (fieldCount * 3 == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[fieldCount * 3] = fieldStart;
+        fields[fieldCount * 3 + 1] = equals == -1 ? end : equals;
+        fields[fieldCount * 3 + 2] = end;
+        ++fieldCount;
+    }
+
+    /**
+     * @return The index into the field array, or -1 for the field that is still being read
+     */
+    private int index(final int field) {
+        if (field < 0 || field >= getFieldCount()) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + getFieldCount());
+        }
+        return field == fieldCount ? -1 : field * 3;
+    }
+
+    private int fieldStart(final int index) {
+        return index == -1 ? fieldStart : fields[index];
+    }
+
+    private int nameEnd(final int index) {
+        return index == -1 ? (equals == -1 ? length : equals) : fields[index + 1];
+    }
+
+    private int fieldEnd(final int index) {
+        return index == -1 ? length : fields[index + 2];
+    }
+
+    /**
+     * Compares the encoded bytes to the name as they are decoded, so the name does not need to be encoded
+     */
+    private boolean matches(final int start, final int end, final String name) {
+        int pos = start;
+        for (int i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            if (c >= 0x80) {
+                return decode(start, end).equals(name);
+            }
+            if (pos == end) {
+                return false;
+            }
+            int b = bytes[pos++];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && end - pos >= 2) {
+                final int hi = Character.digit(bytes[pos], 16);
+                final int lo = Character.digit(bytes[pos + 1], 16);
+                if (hi != -1 && lo != -1) {
+                    b = (hi << 4) | lo;
+                    pos += 2;
+                }
+            }
+            if (b != c) {
+                return false;
+            }
+        }
+        return pos == end;
+    }
+
+    /**
+     * Decodes '+' and percent escapes, leaving invalid escapes as they are
+     */
+    private String decode(final int start, final int end) {
+        final byte[] bytes = this.bytes;
+        int i = start;
+        while (i < end && bytes[i] != '%' && bytes[i] != '+' && bytes[i] >= 0) {
+            ++i;
+        }
+        if (i == end) {
+            //nothing to decode
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, scratch.length * 2)];
+        }
+        final byte[] scratch = this.scratch;
+        int length = 0;
+        for (i = start; i < end; ++i) {
+            final byte b = bytes[i];
+            if (b == '+') {
+                scratch[length++] = ' ';
+            } else if (b == '%' && end - i > 2 && Character.digit(bytes[i + 1], 16) != -1 && Character.digit(bytes[i + 2], 16) != -1) {
+                scratch[length++] = (byte) ((Character.digit(bytes[i + 1], 16) << 4) | Character.digit(bytes[i + 2], 16));
+                i += 2;
+            } else {
+                scratch[length++] = b;
+            }
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.util.Arrays;
+
+/**
+ * Decodes typed header values straight from the bytes that were read, without creating a string first.
+ *
+ * @author Stuart Douglas
+ */
+final class HeaderValues {
+
+    private static final byte[] MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec".getBytes();
+
+    /**
+     * The length of an IMF-fixdate, e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+     */
+    private static final int DATE_LENGTH = 29;
+
+    /**
+     * Most requests in any given second send the same date, so we remember the last one we parsed
+     */
+    private static volatile CachedDate lastDate;
+
+    private HeaderValues() {
+    }
+
+    /**
+     * @return The value, or -1 if it is not a valid content length
+     */
+    static long parseContentLength(final byte[] bytes, int offset, int length) {
+        while (length > 0 && isWhitespace(bytes[offset])) {
+            ++offset;
+            --length;
+        }
+        while (length > 0 && isWhitespace(bytes[offset + length - 1])) {
+            --length;
+        }
+        if (length == 0 || length > 18) {
+            //anything longer than this could overflow
+            return -1;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parses a comma separated list of tokens, ignoring case.
+     *
+     * @param tokens      The known tokens, in lower case
+     * @param tokenFlags  The flag for each of the known tokens
+     * @param unknownFlag The flag for any other token
+     * @return The flags of every token in the list
+     */
+    static int parseTokens(final byte[] bytes, final int offset, final int length, final String[] tokens, final int[] tokenFlags, final int unknownFlag) {
+        int flags = 0;
+        final int end = offset + length;
+        int start = offset;
+        while (start < end) {
+            int tokenEnd = start;
+            while (tokenEnd < end && bytes[tokenEnd] != ',') {
+                ++tokenEnd;
+            }
+            int s = start;
+            int e = tokenEnd;
+            while (s < e && isWhitespace(bytes[s])) {
+                ++s;
+            }
+            while (e > s && isWhitespace(bytes[e - 1])) {
+                --e;
+            }
+            if (s < e) {
+                int flag = unknownFlag;
+                for (int i = 0; i < tokens.length; ++i) {
+                    if (equalsIgnoreCase(bytes, s, e - s, tokens[i])) {
+                        flag = tokenFlags[i];
+                        break;
+                    }
+                }
+                flags |= flag;
+            }
+            start = tokenEnd + 1;
+        }
+        return flags;
+    }
+
+    /**
+     * Parses an IMF-fixdate. The obsolete RFC 850 and asctime formats are not supported.
+     *
+     * @return The date in milliseconds since the epoch, or -1 if it is not a valid date
+     */
+    static long parseDate(final byte[] bytes, int offset, int length) {
+        while (length > 0 && isWhitespace(bytes[offset])) {
+            ++offset;
+            --length;
+        }
+        while (length > 0 && isWhitespace(bytes[offset + length - 1])) {
+            --length;
+        }
+        if (length != DATE_LENGTH) {
+            return -1;
+        }
+        final CachedDate cached = lastDate;
+        if (cached != null && cached.matches(bytes, offset)) {
+            return cached.millis;
+        }
+        if (bytes[offset + 3] != ',' || bytes[offset + 4] != ' ' || bytes[offset + 7] != ' ' || bytes[offset + 11] != ' '
+                || bytes[offset + 16] != ' ' || bytes[offset + 19] != ':' || bytes[offset + 22] != ':'
+                || bytes[offset + 25] != ' ' || bytes[offset + 26] != 'G' || bytes[offset + 27] != 'M' || bytes[offset + 28] != 'T') {
+            return -1;
+        }
+        int month = -1;
+        for (int i = 0; i < 12; ++i) {
+            if (bytes[offset + 8] == MONTHS[i * 3] && bytes[offset + 9] == MONTHS[i * 3 + 1] && bytes[offset + 10] == MONTHS[i * 3 + 2]) {
+                month = i + 1;
+                break;
+            }
+        }
+        final int day = digits(bytes, offset + 5, 2);
+        final int year = digits(bytes, offset + 12, 4);
+        final int hour = digits(bytes, offset + 17, 2);
+        final int minute = digits(bytes, offset + 20, 2);
+        final int second = digits(bytes, offset + 23, 2);
+        if (month == -1 || day < 1 || day > 31 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+        final long millis = ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+        lastDate = new CachedDate(Arrays.copyOfRange(bytes, offset, offset + DATE_LENGTH), millis);
+        return millis;
+    }
+
+    /**
+     * @return The number of days between 1970-01-01 and the given date in the proleptic Gregorian calendar
+     */
+    private static long daysSinceEpoch(int year, final int month, final int day) {
+        //years start in March, so the leap day is at the end of the year
+        if (month <= 2) {
+            --year;
+        }
+        final int era = year / 400;
+        final int yearOfEra = year - era * 400;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * @return The value of the digits, or -1 if they are not all digits
+     */
+    private static int digits(final byte[] bytes, final int offset, final int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean equalsIgnoreCase(final byte[] bytes, final int offset, final int length, final String lowerCase) {
+        if (length != lowerCase.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            final int b = bytes[offset + i];
+            if (b != lowerCase.charAt(i) && (b < 'A' || b > 'Z' || b + ('a' - 'A') != lowerCase.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static final class CachedDate {
+        final byte[] bytes;
+        final long millis;
+
+        private CachedDate(final byte[] bytes, final long millis) {
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        boolean matches(final byte[] other, final int offset) {
+            for (int i = DATE_LENGTH - 1; i >= 0; --i) {
+                if (bytes[i] != other[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes HTTP/2 header blocks into the same {@link HttpExchangeBuilder} output as the HTTP/1.1 {@link Tokenizer}.
+ *
+ * @author Stuart Douglas
+ */
+public interface HpackDecoder {
+
+    /**
+     * Decodes a complete header block, i.e. the contents of a HEADERS frame and any CONTINUATION frames that
+     * follow it.
+     *
+     * @param buffer  The byte buffer
+     * @param noBytes The size of the header block, which starts at the buffer's position
+     * @param state   The HPACK state of the connection
+     * @param builder The builder that receives the headers
+     * @throws HpackException If the header block is not valid
+     */
+    void decode(ByteBuffer buffer, int noBytes, final HpackState state, final HttpExchangeBuilder builder);
+
+}
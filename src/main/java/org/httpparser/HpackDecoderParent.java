@@ -0,0 +1,325 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Super class of the generated HPACK decoders.
+ * <p/>
+ * The generated subclass provides tries that match header names and verbs against the configured values, so
+ * that configured verbs and standard headers are passed on as interned strings, as the HTTP/1.1 tokenizer does.
+ * Everything else is the same for every decoder, so it lives here.
+ *
+ * @author Stuart Douglas
+ */
+public abstract class HpackDecoderParent {
+
+    static final String MATCH_HEADER = "matchHeader";
+    static final String MATCH_VERB = "matchVerb";
+
+    //pseudo headers, the generated tries return these exact instances so they can be compared by identity
+    static final String METHOD = ":method";
+    static final String PATH = ":path";
+    static final String AUTHORITY = ":authority";
+    static final String SCHEME = ":scheme";
+    static final String STATUS = ":status";
+    static final String[] PSEUDO_HEADERS = {METHOD, PATH, AUTHORITY, SCHEME, STATUS};
+
+    static final String HTTP_2 = "HTTP/2.0";
+
+    private static final String HOST = "host";
+    private static final String COOKIE = "cookie";
+
+    /**
+     * The static table from RFC 7541 appendix A. Index 0 is not used.
+     */
+    private static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    private static final int STATIC_TABLE_SIZE = STATIC_TABLE.length - 1;
+
+    private final String[] staticNames = new String[STATIC_TABLE.length];
+    private final String[] staticValues = new String[STATIC_TABLE.length];
+    private final boolean[] staticStandard = new boolean[STATIC_TABLE.length];
+    private final String host;
+    private final boolean hostStandard;
+
+    protected HpackDecoderParent() {
+        for (int i = 1; i < STATIC_TABLE.length; ++i) {
+            final byte[] name = STATIC_TABLE[i][0].getBytes(StandardCharsets.ISO_8859_1);
+            final String match = matchHeader(name, name.length);
+            staticNames[i] = match == null ? STATIC_TABLE[i][0] : match;
+            staticStandard[i] = isStandard(match);
+            if (staticNames[i] == METHOD) {
+                final byte[] value = STATIC_TABLE[i][1].getBytes(StandardCharsets.ISO_8859_1);
+                staticValues[i] = verb(value, value.length);
+            } else {
+                staticValues[i] = STATIC_TABLE[i][1];
+            }
+        }
+        final byte[] hostBytes = HOST.getBytes(StandardCharsets.ISO_8859_1);
+        final String hostMatch = matchHeader(hostBytes, hostBytes.length);
+        host = hostMatch == null ? HOST : hostMatch;
+        hostStandard = isStandard(hostMatch);
+    }
+
+    /**
+     * Matches a lower case header name against the configured standard headers and the pseudo headers.
+     *
+     * @return The configured header name, or null if this is not a standard header
+     */
+    abstract String matchHeader(final byte[] bytes, final int length);
+
+    /**
+     * @return The configured verb, or null if this is not one of the configured verbs
+     */
+    abstract String matchVerb(final byte[] bytes, final int length);
+
+    /**
+     * Called by the generated tries once only one value can possibly match
+     *
+     * @return <code>result</code> if the rest of <code>bytes</code> matches <code>expected</code>, otherwise null
+     */
+    static String matchRemaining(final byte[] bytes, final int length, final int pos, final String expected, final String result) {
+        if (length != expected.length()) {
+            return null;
+        }
+        for (int i = pos; i < length; ++i) {
+            if (bytes[i] != expected.charAt(i)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    public void decode(final ByteBuffer buffer, final int noBytes, final HpackState state, final HttpExchangeBuilder builder) {
+        BufferAccess.checkBounds(buffer, noBytes);
+        final Object base = BufferAccess.base(buffer);
+        final long address = BufferAccess.address(buffer);
+        final int end = buffer.position() + noBytes;
+        state.index = buffer.position();
+        while (state.index < end) {
+            final int b = BufferAccess.getByte(buffer, base, address, state.index);
+            if ((b & 0x80) != 0) {
+                //indexed header field
+                final int index = readInteger(buffer, base, address, end, 7, state);
+                if (index == 0) {
+                    throw new HpackException("Invalid index 0");
+                } else if (index <= STATIC_TABLE_SIZE) {
+                    header(builder, staticNames[index], staticValues[index], staticStandard[index]);
+                } else {
+                    final int slot = state.slot(index - STATIC_TABLE_SIZE);
+                    header(builder, state.names[slot], state.values[slot], state.standard[slot]);
+                }
+            } else if ((b & 0xE0) == 0x20) {
+                //dynamic table size update
+                state.setMaxTableSize(readInteger(buffer, base, address, end, 5, state));
+            } else {
+                //literal header field, either with incremental indexing, without indexing or never indexed
+                final boolean indexing = (b & 0x40) != 0;
+                final int nameIndex = readInteger(buffer, base, address, end, indexing ? 6 : 4, state);
+                final String name;
+                final boolean standard;
+                if (nameIndex == 0) {
+                    final int length = readString(buffer, base, address, end, state);
+                    if (length == 0) {
+                        throw new HpackException("Empty header name");
+                    }
+                    final String match = matchHeader(state.scratch, length);
+                    name = match == null ? new String(state.scratch, 0, length, StandardCharsets.ISO_8859_1) : match;
+                    standard = isStandard(match);
+                } else if (nameIndex <= STATIC_TABLE_SIZE) {
+                    name = staticNames[nameIndex];
+                    standard = staticStandard[nameIndex];
+                } else {
+                    final int slot = state.slot(nameIndex - STATIC_TABLE_SIZE);
+                    name = state.names[slot];
+                    standard = state.standard[slot];
+                }
+                final int length = readString(buffer, base, address, end, state);
+                final String value;
+                if (name == METHOD) {
+                    value = verb(state.scratch, length);
+                } else {
+                    value = new String(state.scratch, 0, length, StandardCharsets.ISO_8859_1);
+                }
+                if (indexing) {
+                    state.add(name, value, standard);
+                }
+                header(builder, name, value, standard);
+            }
+        }
+        buffer.position(end);
+        builder.httpVersion = HTTP_2;
+    }
+
+    private String verb(final byte[] bytes, final int length) {
+        final String match = matchVerb(bytes, length);
+        return match == null ? new String(bytes, 0, length, StandardCharsets.ISO_8859_1) : match;
+    }
+
+    private static boolean isStandard(final String match) {
+        return match != null && match.charAt(0) != ':';
+    }
+
+    private void header(final HttpExchangeBuilder builder, final String name, final String value, final boolean standard) {
+        if (name.charAt(0) == ':') {
+            if (name == METHOD) {
+                builder.verb = value;
+            } else if (name == PATH) {
+                builder.path = value;
+            } else if (name == AUTHORITY) {
+                header(builder, host, value, hostStandard);
+            }
+            //:scheme has no HTTP/1.1 equivalent, and :status is only sent in responses
+            return;
+        }
+        if (standard && HttpExchangeBuilder.isTyped(name)) {
+            final byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            builder.handleStandardHeader(name, bytes, 0, bytes.length);
+            return;
+        }
+        final Map<String, String> headers = standard ? builder.standardHeaders : builder.otherHeaders;
+        final String existing = headers.put(name, value);
+        if (existing != null && name.equalsIgnoreCase(COOKIE)) {
+            //HTTP/2 allows the cookie header to be split into one field per cookie
+            headers.put(name, existing + "; " + value);
+        }
+    }
+
+    /**
+     * Reads an integer with an N bit prefix (RFC 7541 section 5.1) starting at <code>state.index</code>
+     */
+    private static int readInteger(final ByteBuffer buffer, final Object base, final long address, final int end, final int prefix, final HpackState state) {
+        final int mask = (1 << prefix) - 1;
+        int value = BufferAccess.getByte(buffer, base, address, state.index++) & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (state.index == end) {
+                throw new HpackException("Truncated integer");
+            } else if (shift > 21) {
+                throw new HpackException("Integer is too large");
+            }
+            b = BufferAccess.getByte(buffer, base, address, state.index++);
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Reads a string literal (RFC 7541 section 5.2) into the scratch area of the state.
+     *
+     * @return The length of the string
+     */
+    private static int readString(final ByteBuffer buffer, final Object base, final long address, final int end, final HpackState state) {
+        if (state.index == end) {
+            throw new HpackException("Truncated string literal");
+        }
+        final boolean huffman = (BufferAccess.getByte(buffer, base, address, state.index) & 0x80) != 0;
+        final int length = readInteger(buffer, base, address, end, 7, state);
+        if (length > end - state.index) {
+            throw new HpackException("Truncated string literal");
+        }
+        final int start = state.index;
+        state.index += length;
+        if (huffman) {
+            //the shortest code is 5 bits
+            return HpackHuffman.decode(buffer, base, address, start, length, state.scratch(length * 8 / 5));
+        }
+        final byte[] bytes = state.scratch(length);
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = BufferAccess.getByte(buffer, base, address, start + i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+/**
+ * The HPACK decoding state of a single HTTP/2 connection. This class is mutable and not thread safe.
+ * <p/>
+ * The dynamic table is a ring buffer of parallel arrays that is sized for the largest table the connection
+ * can have, so adding and evicting entries never allocates. The names that are stored are the same string
+ * instances that were used for the header when it was first seen, so standard headers stay standard.
+ *
+ * fields are not private to allow for efficient access from the decoder
+ *
+ * @author Stuart Douglas
+ */
+public class HpackState {
+
+    /**
+     * The initial value of <code>SETTINGS_HEADER_TABLE_SIZE</code>
+     */
+    public static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+    /**
+     * The size of an entry is the length of its name and value plus this overhead
+     */
+    static final int ENTRY_OVERHEAD = 32;
+
+    private static final int INITIAL_SCRATCH_SIZE = 64;
+
+    /**
+     * The largest table size the decoder can be told to use, i.e. the value of <code>SETTINGS_HEADER_TABLE_SIZE</code>
+     * that we sent to the peer.
+     */
+    final int maxTableSizeLimit;
+
+    /**
+     * The current maximum size of the dynamic table, as set by the encoder with a dynamic table size update
+     */
+    int maxTableSize;
+
+    /**
+     * The current size of the dynamic table
+     */
+    int tableSize;
+
+    final String[] names;
+    final String[] values;
+    final boolean[] standard;
+
+    /**
+     * The slot that holds the most recently added entry
+     */
+    int head;
+
+    /**
+     * The number of entries in the dynamic table
+     */
+    int entries;
+
+    /**
+     * The index in the buffer that the decoder will read next. This is only used while a header block is being decoded.
+     */
+    int index;
+
+    /**
+     * Scratch area that string literals are decoded into before they are matched or turned into a string
+     */
+    byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+
+    public HpackState() {
+        this(DEFAULT_HEADER_TABLE_SIZE);
+    }
+
+    /**
+     * @param maxTableSizeLimit The value of <code>SETTINGS_HEADER_TABLE_SIZE</code> that was sent to the peer
+     */
+    public HpackState(final int maxTableSizeLimit) {
+        this.maxTableSizeLimit = maxTableSizeLimit;
+        this.maxTableSize = maxTableSizeLimit;
+        //every entry takes up at least ENTRY_OVERHEAD, which gives us an upper bound on the number of entries
+        final int slots = maxTableSizeLimit / ENTRY_OVERHEAD + 1;
+        this.names = new String[slots];
+        this.values = new String[slots];
+        this.standard = new boolean[slots];
+    }
+
+    /**
+     * @return the slot that holds the given dynamic table entry, where 1 is the most recently added entry
+     */
+    final int slot(final int index) {
+        if (index < 1 || index > entries) {
+            throw new HpackException("Invalid dynamic table index " + index);
+        }
+        int slot = head - index + 1;
+        if (slot < 0) {
+            slot += names.length;
+        }
+        return slot;
+    }
+
+    final void add(final String name, final String value, final boolean standard) {
+        final int size = name.length() + value.length() + ENTRY_OVERHEAD;
+        if (size > maxTableSize) {
+            //adding an entry that is larger than the table empties it
+            evict(0);
+            return;
+        }
+        evict(maxTableSize - size);
+        if (++head == names.length) {
+            head = 0;
+        }
+        names[head] = name;
+        values[head] = value;
+        this.standard[head] = standard;
+        ++entries;
+        tableSize += size;
+    }
+
+    final void setMaxTableSize(final int maxTableSize) {
+        if (maxTableSize > maxTableSizeLimit) {
+            throw new HpackException("Dynamic table size update of " + maxTableSize + " exceeds the limit of " + maxTableSizeLimit);
+        }
+        this.maxTableSize = maxTableSize;
+        evict(maxTableSize);
+    }
+
+    /**
+     * Evicts the oldest entries until the table is no larger than the given size
+     */
+    private void evict(final int size) {
+        while (tableSize > size) {
+            final int slot = slot(entries);
+            tableSize -= names[slot].length() + values[slot].length() + ENTRY_OVERHEAD;
+            names[slot] = null;
+            values[slot] = null;
+            --entries;
+        }
+    }
+
+    /**
+     * @return the scratch area, grown if necessary so it can hold <code>length</code> bytes
+     */
+    final byte[] scratch(final int length) {
+        byte[] bytes = scratch;
+        if (bytes.length < length) {
+            scratch = bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        return bytes;
+    }
+}
@@ -22,21 +22,192 @@
 
 package org.httpparser;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
 
 /**
- *
+ * Token handler that collects the request into fields and header maps.
+ * <p/>
+ * <code>Content-Length</code>, <code>Connection</code>, <code>Expect</code>, <code>Transfer-Encoding</code>,
+ * <code>Date</code> and <code>If-Modified-Since</code> are decoded into typed fields, and are not stored in
+ * {@link #standardHeaders} if the typed field holds the whole value. If it does not, e.g. the content length is
+ * not a number or a connection option other than close, keep-alive and upgrade was sent, the raw value is stored
+ * as well.
  *
  * @author Stuart Douglas
  */
-public class HttpExchangeBuilder {
+public class HttpExchangeBuilder implements TokenHandler {
+
+    public static final int CONNECTION_CLOSE = 1;
+    public static final int CONNECTION_KEEP_ALIVE = 1 << 1;
+    public static final int CONNECTION_UPGRADE = 1 << 2;
+    public static final int EXPECT_CONTINUE = 1 << 3;
+    /**
+     * An expectation other than <code>100-continue</code> was sent
+     */
+    public static final int EXPECT_UNKNOWN = 1 << 4;
+    public static final int TRANSFER_ENCODING_CHUNKED = 1 << 5;
+    /**
+     * A transfer coding other than <code>chunked</code> was sent
+     */
+    public static final int TRANSFER_ENCODING_OTHER = 1 << 6;
+    /**
+     * The content length was not a number, or several different content lengths were sent
+     */
+    public static final int CONTENT_LENGTH_INVALID = 1 << 7;
+    /**
+     * A connection option other than <code>close</code>, <code>keep-alive</code> and <code>upgrade</code> was sent
+     */
+    public static final int CONNECTION_OTHER = 1 << 8;
+
+    /**
+     * The headers that are decoded into typed fields rather than stored as strings.
+     * <p/>
+     * These are compared by identity, as header names are always the interned names that were configured.
+     */
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CONNECTION = "Connection";
+    private static final String EXPECT = "Expect";
+    private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    private static final String DATE = "Date";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String[] CONNECTION_TOKENS = {"close", "keep-alive", "upgrade"};
+    private static final int[] CONNECTION_FLAGS = {CONNECTION_CLOSE, CONNECTION_KEEP_ALIVE, CONNECTION_UPGRADE};
+    private static final String[] EXPECT_TOKENS = {"100-continue"};
+    private static final int[] EXPECT_FLAGS = {EXPECT_CONTINUE};
+    private static final String[] TRANSFER_ENCODING_TOKENS = {"chunked"};
+    private static final int[] TRANSFER_ENCODING_FLAGS = {TRANSFER_ENCODING_CHUNKED};
+
     String verb;
     String path;
     String httpVersion;
     final Map<String, String> standardHeaders = new IdentityHashMap<>();
     final Map<String, String> otherHeaders = new HashMap<>();
-    String nextStandardHeader;
-    String nextOtherHeader;
+    long contentLength = -1;
+    int flags;
+    long date = -1;
+    long ifModifiedSince = -1;
+
+    /**
+     * Clears the builder so that it can be used for the next request on the connection
+     */
+    public void reset() {
+        verb = null;
+        path = null;
+        httpVersion = null;
+        standardHeaders.clear();
+        otherHeaders.clear();
+        contentLength = -1;
+        flags = 0;
+        date = -1;
+        ifModifiedSince = -1;
+    }
+
+    @Override
+    public boolean handleVerb(final String verb) {
+        this.verb = verb;
+        return false;
+    }
+
+    @Override
+    public boolean handlePath(final byte[] bytes, final int offset, final int length) {
+        this.path = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        return false;
+    }
+
+    @Override
+    public boolean handleVersion(final String version) {
+        this.httpVersion = version;
+        return false;
+    }
+
+    @Override
+    public boolean handleStandardHeader(final String header, final byte[] value, final int offset, final int length) {
+        final boolean typed;
+        if (header == CONTENT_LENGTH) {
+            final long contentLength = HeaderValues.parseContentLength(value, offset, length);
+            typed = contentLength != -1;
+            if (!typed || (this.contentLength != -1 && this.contentLength != contentLength)) {
+                flags |= CONTENT_LENGTH_INVALID;
+            }
+            this.contentLength = contentLength;
+        } else if (header == CONNECTION) {
+            final int connection = HeaderValues.parseTokens(value, offset, length, CONNECTION_TOKENS, CONNECTION_FLAGS, CONNECTION_OTHER);
+            typed = (connection & CONNECTION_OTHER) == 0;
+            flags |= connection;
+        } else if (header == EXPECT) {
+            final int expect = HeaderValues.parseTokens(value, offset, length, EXPECT_TOKENS, EXPECT_FLAGS, EXPECT_UNKNOWN);
+            typed = (expect & EXPECT_UNKNOWN) == 0;
+            flags |= expect;
+        } else if (header == TRANSFER_ENCODING) {
+            final int transferEncoding = HeaderValues.parseTokens(value, offset, length, TRANSFER_ENCODING_TOKENS, TRANSFER_ENCODING_FLAGS, TRANSFER_ENCODING_OTHER);
+            typed = (transferEncoding & TRANSFER_ENCODING_OTHER) == 0;
+            flags |= transferEncoding;
+        } else if (header == DATE) {
+            date = HeaderValues.parseDate(value, offset, length);
+            typed = date != -1;
+        } else if (header == IF_MODIFIED_SINCE) {
+            ifModifiedSince = HeaderValues.parseDate(value, offset, length);
+            typed = ifModifiedSince != -1;
+        } else {
+            typed = false;
+        }
+        if (!typed) {
+            standardHeaders.put(header, new String(value, offset, length, StandardCharsets.ISO_8859_1));
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the given standard header is decoded into a typed field rather than stored as a string
+     */
+    static boolean isTyped(final String header) {
+        return header == CONTENT_LENGTH || header == CONNECTION || header == EXPECT || header == TRANSFER_ENCODING
+                || header == DATE || header == IF_MODIFIED_SINCE;
+    }
+
+    /**
+     * @return The content length, or -1 if no valid content length was sent
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return The flags decoded from the <code>Connection</code>, <code>Expect</code>, <code>Transfer-Encoding</code>
+     *         and <code>Content-Length</code> headers. If one of the <code>OTHER</code>, <code>UNKNOWN</code> or
+     *         <code>INVALID</code> flags is set the raw value of that header is in {@link #standardHeaders}.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return The value of the <code>Date</code> header in milliseconds since the epoch, or -1 if there was no valid date
+     */
+    public long getDate() {
+        return date;
+    }
+
+    /**
+     * @return The value of the <code>If-Modified-Since</code> header in milliseconds since the epoch, or -1 if there was
+     *         no valid date
+     */
+    public long getIfModifiedSince() {
+        return ifModifiedSince;
+    }
+
+    @Override
+    public boolean handleOtherHeader(final String header, final byte[] value, final int offset, final int length) {
+        otherHeaders.put(header, new String(value, offset, length, StandardCharsets.ISO_8859_1));
+        return false;
+    }
+
+    @Override
+    public boolean handleHeadersComplete() {
+        return false;
+    }
 }
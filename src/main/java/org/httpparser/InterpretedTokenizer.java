@@ -0,0 +1,173 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+/**
+ * A tokenizer that walks the token tries through {@link TransitionTable}s instead of generated bytecode. This is
+ * slower than a generated tokenizer, but it is ready to use straight away, as no class has to be generated,
+ * loaded and JIT compiled.
+ * <p/>
+ * The trie state is kept in {@link TokenState#parseState}. This uses the same encoding as the generated code for
+ * the initial state (0) and for unknown tokens ({@link TokenState#NO_STATE}), but any other state number is
+ * only meaningful to this tokenizer.
+ *
+ * @author Stuart Douglas
+ */
+final class InterpretedTokenizer extends TokenizerParent implements Tokenizer {
+
+    private final TransitionTable verbs;
+    private final TransitionTable versions;
+    private final TransitionTable headers;
+
+    InterpretedTokenizer(final TransitionTable verbs, final TransitionTable versions, final TransitionTable headers) {
+        this.verbs = verbs;
+        this.versions = versions;
+        this.headers = headers;
+        this.methodSizes = Collections.emptyMap();
+    }
+
+    @Override
+    public int handle(final ByteBuffer buffer, final int noBytes, final TokenState state, final TokenHandler handler) {
+        BufferAccess.checkBounds(buffer, noBytes);
+        int remaining = noBytes;
+        while (true) {
+            switch (state.state) {
+                case TokenState.VERB:
+                    remaining = handleToken(buffer, remaining, state, handler, verbs, TokenState.VERB);
+                    break;
+                case TokenState.PATH:
+                    remaining = handlePath(buffer, remaining, state, handler);
+                    break;
+                case TokenState.VERSION:
+                    remaining = handleToken(buffer, remaining, state, handler, versions, TokenState.VERSION);
+                    break;
+                case TokenState.HEADER:
+                    remaining = handleToken(buffer, remaining, state, handler, headers, TokenState.HEADER);
+                    break;
+                case TokenState.HEADER_VALUE:
+                    remaining = handleHeaderValue(buffer, remaining, state, handler);
+                    break;
+                case TokenState.PARSE_COMPLETE:
+                case TokenState.PARSE_STOPPED:
+                    return remaining;
+                default:
+                    throw new RuntimeException("Could not find state");
+            }
+            if (remaining == 0) {
+                return 0;
+            }
+        }
+    }
+
+    private static int handleToken(final ByteBuffer buffer, int remaining, final TokenState state, final TokenHandler handler, final TransitionTable table, final int parseState) {
+        if (remaining == 0) {
+            return 0;
+        }
+        final byte[] classes = parseState == TokenState.HEADER ? HEADER_BYTE_CLASSES : BYTE_CLASSES;
+        final Object base = BufferAccess.base(buffer);
+        final long address = BufferAccess.address(buffer);
+        int index = buffer.position();
+        int current = state.parseState;
+        while (true) {
+            final byte next;
+            if (state.leftOver != 0) {
+                //the first byte of a header, that the value parser had to read to see if the value continued
+                next = state.leftOver;
+                state.leftOver = 0;
+            } else if (remaining == 0) {
+                break;
+            } else {
+                next = BufferAccess.getByte(buffer, base, address, index++);
+                --remaining;
+            }
+            final boolean delimiter = classes[next & 0xFF] != TOKEN_CHAR;
+            if (current == TokenState.NO_STATE) {
+                if (delimiter) {
+                    return tokenDone(buffer, index, remaining, state, handler, parseState, false, table.selective ? null : state.tokenString());
+                } else if (!table.selective) {
+                    state.append(next);
+                }
+                continue;
+            }
+            final int target = table.next(current, next);
+            if (target != -1) {
+                current = target;
+            } else if (!delimiter) {
+                if (!table.selective) {
+                    //copy what we have matched so far into the token scratch area, followed by the current byte
+                    final String prefix = table.prefixes[current];
+                    state.startToken(prefix, prefix.length());
+                    state.append(next);
+                }
+                current = TokenState.NO_STATE;
+            } else if (current != 0) {
+                final String value = table.values[current];
+                if (value != null) {
+                    return tokenDone(buffer, index, remaining, state, handler, parseState, true, value);
+                }
+                return tokenDone(buffer, index, remaining, state, handler, parseState, false, table.selective ? null : table.prefixes[current]);
+            }
+            //otherwise this is whitespace before the token starts, which is skipped
+        }
+        state.parseState = current;
+        buffer.position(index);
+        return remaining;
+    }
+
+    /**
+     * Passes on a token, and moves on to the next parse state
+     *
+     * @param matched If the token is one of the values the table was created from
+     */
+    private static int tokenDone(final ByteBuffer buffer, final int index, final int remaining, final TokenState state, final TokenHandler handler, final int parseState, final boolean matched, final String token) {
+        final boolean stop;
+        switch (parseState) {
+            case TokenState.VERB:
+                stop = handler.handleVerb(token);
+                break;
+            case TokenState.VERSION:
+                stop = handler.handleVersion(token);
+                break;
+            default:
+                //the handler is called once we have the value as well
+                if (matched) {
+                    state.nextStandardHeader = token;
+                } else {
+                    state.nextOtherHeader = token;
+                }
+                stop = false;
+        }
+        if (stop) {
+            state.state = TokenState.PARSE_STOPPED;
+        } else {
+            //the value parser takes care of the end of the request line
+            state.state = parseState == TokenState.VERB ? TokenState.PATH : TokenState.HEADER_VALUE;
+        }
+        state.parseState = 0;
+        buffer.position(index);
+        return remaining;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the parts of a <code>multipart/form-data</code> body as the {@link MultipartParser} finds them.
+ *
+ * @author Stuart Douglas
+ */
+public interface MultipartHandler {
+
+    /**
+     * Called once the headers of a part have been read
+     *
+     * @param contentDisposition The value of the <code>Content-Disposition</code> header, or null if there is none
+     * @param contentType        The value of the <code>Content-Type</code> header, or null if there is none
+     */
+    void beginPart(String contentDisposition, String contentType);
+
+    /**
+     * Called with the next span of the body of the current part. The span is a view of the buffer that was passed to
+     * the parser, or of the boundary, so it is only valid for the duration of the call.
+     */
+    void data(ByteBuffer data);
+
+    /**
+     * Called once the whole body of the current part has been passed to {@link #data(ByteBuffer)}
+     */
+    void endPart();
+
+}
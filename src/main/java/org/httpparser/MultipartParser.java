@@ -0,0 +1,361 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An incremental parser for <code>multipart/form-data</code> bodies. This class is mutable and not thread safe.
+ * <p/>
+ * The body can be passed to the parser in buffers of any size, and the part bodies are passed to the handler as
+ * views of those buffers, so nothing is copied or aggregated however large the parts are. The delimiter is found
+ * with Boyer-Moore-Horspool. A partial match at the end of a buffer is not passed to the handler until the next
+ * buffer shows whether it is the delimiter, and if it is not it is passed as a view of the delimiter itself, as the
+ * bytes must be the same. This relies on the delimiter only containing a CR at the start, which holds as boundaries
+ * can not contain a CR, so a mismatch can never be the start of another match.
+ * <p/>
+ * Part headers are read with a tokenizer from {@link TokenizerGenerator} that knows about <code>Content-Disposition</code>
+ * and <code>Content-Type</code>, the other part headers are ignored. Header names are not case sensitive, the
+ * tokenizer only matches the exact case, and other spellings are compared when it passes them on as other headers.
+ *
+ * @author Stuart Douglas
+ */
+public class MultipartParser {
+
+    private static final String CONTENT_DISPOSITION = "Content-Disposition";
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    /**
+     * Shared by all parsers. This is interpreted rather than generated, as part headers are short and most processes
+     * only see a few uploads. A tiered tokenizer would never be promoted, as it only counts requests that start
+     * with a verb.
+     */
+    private static final Tokenizer PART_HEADERS = TokenizerGenerator.createInterpretedTokenizer(new String[0], new String[0], new String[]{CONTENT_DISPOSITION, CONTENT_TYPE});
+
+    private static final int PREAMBLE = 0;
+    /**
+     * After a delimiter, where either <code>--</code> or optional whitespace and a CRLF can follow
+     */
+    private static final int BOUNDARY_END = 1;
+    private static final int BOUNDARY_DASH = 2;
+    private static final int BOUNDARY_CR = 3;
+    private static final int HEADERS_START = 4;
+    /**
+     * A part with no headers, we have seen the CR of the blank line
+     */
+    private static final int HEADERS_EMPTY = 5;
+    private static final int HEADERS = 6;
+    private static final int BODY = 7;
+    private static final int EPILOGUE = 8;
+
+    private final MultipartHandler handler;
+    /**
+     * CRLF, two dashes and the boundary
+     */
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private final PartHeaders partHeaders = new PartHeaders();
+    /**
+     * Reused for the headers of each part
+     */
+    private final TokenState headerState = new TokenState();
+
+    private int state = PREAMBLE;
+    /**
+     * The number of bytes of the delimiter that matched at the end of the last buffer
+     */
+    private int matched;
+
+    /**
+     * @param boundary The boundary parameter of the <code>Content-Type</code>
+     */
+    public MultipartParser(final String boundary, final MultipartHandler handler) {
+        if (boundary.isEmpty() || boundary.length() > 70 || boundary.indexOf('\r') != -1 || boundary.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Invalid boundary " + boundary);
+        }
+        this.handler = handler;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        Arrays.fill(skip, delimiter.length);
+        for (int i = 0; i < delimiter.length - 1; ++i) {
+            skip[delimiter[i] & 0xFF] = delimiter.length - 1 - i;
+        }
+        //the first boundary does not have to follow a CRLF, so we start as if we had just seen one
+        this.matched = 2;
+    }
+
+    /**
+     * @return The boundary parameter of a <code>multipart/form-data</code> content type, or null if there is none
+     */
+    public static String getBoundary(final String contentType) {
+        final String boundary = getParameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Gets a parameter of a header such as <code>Content-Disposition</code>, e.g. <code>name</code> or <code>filename</code>.
+     * Quoted values are unquoted.
+     *
+     * @return The value, or null if the parameter is not present
+     */
+    public static String getParameter(final String header, final String name) {
+        if (header == null) {
+            return null;
+        }
+        int pos = header.indexOf(';');
+        while (pos != -1) {
+            int start = pos + 1;
+            while (start < header.length() && (header.charAt(start) == ' ' || header.charAt(start) == '\t')) {
+                ++start;
+            }
+            final int equals = header.indexOf('=', start);
+            if (equals == -1) {
+                return null;
+            }
+            final boolean found = header.substring(start, equals).trim().equalsIgnoreCase(name);
+            int end;
+            if (equals + 1 < header.length() && header.charAt(equals + 1) == '"') {
+                final StringBuilder value = new StringBuilder();
+                end = equals + 2;
+                while (end < header.length() && header.charAt(end) != '"') {
+                    if (header.charAt(end) == '\\' && end + 1 < header.length()) {
+                        ++end;
+                    }
+                    value.append(header.charAt(end++));
+                }
+                if (found) {
+                    return value.toString();
+                }
+                pos = header.indexOf(';', end);
+            } else {
+                end = header.indexOf(';', equals);
+                if (found) {
+                    return header.substring(equals + 1, end == -1 ? header.length() : end).trim();
+                }
+                pos = end;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses all the remaining bytes in the buffer. The position of the buffer is moved to its limit.
+     */
+    public void parse(final ByteBuffer buffer) {
+        final Object base = BufferAccess.base(buffer);
+        final long address = BufferAccess.address(buffer);
+        int pos = buffer.position();
+        final int limit = buffer.limit();
+        while (pos < limit) {
+            switch (state) {
+                case PREAMBLE:
+                case BODY:
+                    pos = scan(buffer, base, address, pos, limit);
+                    break;
+                case BOUNDARY_END: {
+                    final byte b = BufferAccess.getByte(buffer, base, address, pos++);
+                    if (b == '-') {
+                        state = BOUNDARY_DASH;
+                    } else if (b == '\r') {
+                        state = BOUNDARY_CR;
+                    } else if (b != ' ' && b != '\t') {
+                        throw new MultipartException("Invalid character " + b + " after boundary");
+                    }
+                    break;
+                }
+                case BOUNDARY_DASH:
+                    expect(BufferAccess.getByte(buffer, base, address, pos++), '-');
+                    state = EPILOGUE;
+                    break;
+                case BOUNDARY_CR:
+                    expect(BufferAccess.getByte(buffer, base, address, pos++), '\n');
+                    state = HEADERS_START;
+                    break;
+                case HEADERS_START:
+                    //the tokenizer always expects at least one header
+                    if (BufferAccess.getByte(buffer, base, address, pos) == '\r') {
+                        ++pos;
+                        state = HEADERS_EMPTY;
+                    } else {
+                        headerState.reset();
+                        headerState.state = TokenState.HEADER;
+                        partHeaders.contentDisposition = null;
+                        partHeaders.contentType = null;
+                        state = HEADERS;
+                    }
+                    break;
+                case HEADERS_EMPTY:
+                    expect(BufferAccess.getByte(buffer, base, address, pos++), '\n');
+                    state = BODY;
+                    handler.beginPart(null, null);
+                    break;
+                case HEADERS:
+                    buffer.position(pos);
+                    PART_HEADERS.handle(buffer, limit - pos, headerState, partHeaders);
+                    pos = buffer.position();
+                    if (headerState.state == TokenState.PARSE_COMPLETE) {
+                        headerState.reset();
+                        state = BODY;
+                        handler.beginPart(partHeaders.contentDisposition, partHeaders.contentType);
+                    }
+                    break;
+                case EPILOGUE:
+                    pos = limit;
+                    break;
+            }
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * @return true once the closing delimiter has been read
+     */
+    public boolean isComplete() {
+        return state == EPILOGUE;
+    }
+
+    /**
+     * Searches for the delimiter, passing everything before it to the handler if we are in a part body
+     *
+     * @return The new position
+     */
+    private int scan(final ByteBuffer buffer, final Object base, final long address, int pos, final int limit) {
+        final byte[] delimiter = this.delimiter;
+        final int length = delimiter.length;
+        if (matched > 0) {
+            //continue a match that started in an earlier buffer
+            while (matched < length && pos < limit && BufferAccess.getByte(buffer, base, address, pos) == delimiter[matched]) {
+                ++matched;
+                ++pos;
+            }
+            if (matched == length) {
+                matched = 0;
+                delimiterFound();
+                return pos;
+            } else if (pos == limit) {
+                return pos;
+            }
+            if (state == BODY) {
+                handler.data(ByteBuffer.wrap(delimiter, 0, matched).asReadOnlyBuffer());
+            }
+            matched = 0;
+        }
+        final int start = pos;
+        int candidate = pos;
+        while (candidate + length <= limit) {
+            int i = length - 1;
+            while (i >= 0 && BufferAccess.getByte(buffer, base, address, candidate + i) == delimiter[i]) {
+                --i;
+            }
+            if (i < 0) {
+                data(buffer, start, candidate);
+                delimiterFound();
+                return candidate + length;
+            }
+            candidate += skip[BufferAccess.getByte(buffer, base, address, candidate + length - 1) & 0xFF];
+        }
+        //there is no match in this buffer, but there may be the start of one at the end. The skips also rule out
+        //partial matches, as they only skip positions that would not match the last byte we looked at.
+        int end = Math.min(Math.max(candidate, limit - length + 1), limit);
+        for (; end < limit; ++end) {
+            int i = 0;
+            while (end + i < limit && BufferAccess.getByte(buffer, base, address, end + i) == delimiter[i]) {
+                ++i;
+            }
+            if (end + i == limit) {
+                break;
+            }
+        }
+        data(buffer, start, end);
+        matched = limit - end;
+        return limit;
+    }
+
+    private void data(final ByteBuffer buffer, final int start, final int end) {
+        if (state == BODY && end > start) {
+            final ByteBuffer data = buffer.duplicate();
+            data.limit(end);
+            data.position(start);
+            handler.data(data);
+        }
+    }
+
+    private void delimiterFound() {
+        if (state == BODY) {
+            handler.endPart();
+        }
+        state = BOUNDARY_END;
+    }
+
+    private static void expect(final byte b, final char expected) {
+        if (b != expected) {
+            throw new MultipartException("Expected " + (int) expected + " but found " + b);
+        }
+    }
+
+    private static final class PartHeaders implements TokenHandler {
+        String contentDisposition;
+        String contentType;
+
+        @Override
+        public boolean handleVerb(final String verb) {
+            return false;
+        }
+
+        @Override
+        public boolean handlePath(final byte[] bytes, final int offset, final int length) {
+            return false;
+        }
+
+        @Override
+        public boolean handleVersion(final String version) {
+            return false;
+        }
+
+        @Override
+        public boolean handleStandardHeader(final String header, final byte[] value, final int offset, final int length) {
+            if (header == CONTENT_DISPOSITION) {
+                contentDisposition = new String(value, offset, length, StandardCharsets.ISO_8859_1);
+            } else {
+                contentType = new String(value, offset, length, StandardCharsets.ISO_8859_1);
+            }
+            return false;
+        }
+
+        @Override
+        public boolean handleOtherHeader(final String header, final byte[] value, final int offset, final int length) {
+            if (header.equalsIgnoreCase(CONTENT_DISPOSITION)) {
+                contentDisposition = new String(value, offset, length, StandardCharsets.ISO_8859_1);
+            } else if (header.equalsIgnoreCase(CONTENT_TYPE)) {
+                contentType = new String(value, offset, length, StandardCharsets.ISO_8859_1);
+            }
+            return false;
+        }
+
+        @Override
+        public boolean handleHeadersComplete() {
+            return false;
+        }
+    }
+}
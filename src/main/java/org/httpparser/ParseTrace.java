@@ -0,0 +1,124 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+/**
+ * The timings of a single request, as recorded by a {@link TracingTokenizer}. All times are from
+ * {@link System#nanoTime()}, and are 0 if the request has not got that far.
+ * <p/>
+ * One instance is kept per connection in its {@link TokenState}, and is reused for every request on that
+ * connection, so it is only valid for the duration of the {@link ParseTraceListener} call.
+ * <p/>
+ * This also passes the tokens on to the real handler, so that the end of the request line and headers can be
+ * timed without any cost to the tokenizer itself.
+ *
+ * @author Stuart Douglas
+ */
+public final class ParseTrace implements TokenHandler {
+
+    long firstByte;
+    long requestLineComplete;
+    long headersComplete;
+    long dispatched;
+    int fragments;
+
+    /**
+     * The handler for the current call to the tokenizer
+     */
+    TokenHandler delegate;
+
+    /**
+     * @return The time that the first buffer of the request was handed to the tokenizer
+     */
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return The time that the HTTP version, and so the request line, was read
+     */
+    public long getRequestLineComplete() {
+        return requestLineComplete;
+    }
+
+    /**
+     * @return The time that the blank line at the end of the headers was read
+     */
+    public long getHeadersComplete() {
+        return headersComplete;
+    }
+
+    /**
+     * @return The time that the request was dispatched to its handler
+     */
+    public long getDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * @return The number of buffers the request arrived in, i.e. the number of calls to {@link Tokenizer#handle}
+     */
+    public int getFragments() {
+        return fragments;
+    }
+
+    void reset() {
+        firstByte = 0;
+        requestLineComplete = 0;
+        headersComplete = 0;
+        dispatched = 0;
+        fragments = 0;
+    }
+
+    @Override
+    public boolean handleVerb(final String verb) {
+        return delegate.handleVerb(verb);
+    }
+
+    @Override
+    public boolean handlePath(final byte[] bytes, final int offset, final int length) {
+        return delegate.handlePath(bytes, offset, length);
+    }
+
+    @Override
+    public boolean handleVersion(final String version) {
+        requestLineComplete = System.nanoTime();
+        return delegate.handleVersion(version);
+    }
+
+    @Override
+    public boolean handleStandardHeader(final String header, final byte[] value, final int offset, final int length) {
+        return delegate.handleStandardHeader(header, value, offset, length);
+    }
+
+    @Override
+    public boolean handleOtherHeader(final String header, final byte[] value, final int offset, final int length) {
+        return delegate.handleOtherHeader(header, value, offset, length);
+    }
+
+    @Override
+    public boolean handleHeadersComplete() {
+        headersComplete = System.nanoTime();
+        return delegate.handleHeadersComplete();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the raw bytes of a request head as it is parsed, so that a proxy can forward it with a gathering write of
+ * the original buffers. Only the headers that are changed are encoded again, everything else is passed on as
+ * slices of the buffers the request was read into.
+ * <p/>
+ * The buffers that are passed to {@link #parse} must not be reused until the head has been written. This class
+ * is mutable and not thread safe, and one instance can be reused for every request on a connection by calling
+ * {@link #clear()}.
+ *
+ * @author Stuart Douglas
+ */
+public class ProxyRequestHead {
+
+    /**
+     * The bytes of the head, in the order they were read. These are views of the caller's buffers.
+     */
+    private final List<ByteBuffer> spans = new ArrayList<ByteBuffer>();
+
+    /**
+     * The offset of the start of each span within the head
+     */
+    private int[] spanStarts = new int[4];
+    private int length;
+
+    /**
+     * The header lines, found the first time they are needed. Each line is the offset of its start, the offset of
+     * the colon (or the end of the line if there is none) and the offset after its line end, including any
+     * continuation lines. Line 0 is the request line, and the last line is the blank line that ends the head.
+     */
+    private int[] lines;
+    private int lineCount;
+
+    /**
+     * The replacement for each line, or null if it is unchanged. An empty array removes the line.
+     */
+    private byte[][] replacements;
+
+    /**
+     * Headers that are added before the blank line
+     */
+    private final List<byte[]> added = new ArrayList<byte[]>();
+
+    /**
+     * Passes the buffer to the tokenizer, and keeps the bytes that it consumed.
+     *
+     * @return The number of bytes that were not consumed, as returned by {@link Tokenizer#handle}
+     */
+    public int parse(final Tokenizer tokenizer, final ByteBuffer buffer, final int noBytes, final TokenState state, final TokenHandler handler) {
+        final int start = buffer.position();
+        final int remaining = tokenizer.handle(buffer, noBytes, state, handler);
+        if (buffer.position() > start) {
+            final ByteBuffer span = buffer.duplicate();
+            span.limit(buffer.position());
+            span.position(start);
+            if (spans.size() == spanStarts.length) {
+                spanStarts = Arrays.copyOf(spanStarts, spanStarts.length * 2);
+            }
+            spanStarts[spans.size()] = length;
+            spans.add(span.slice());
+            length += buffer.position() - start;
+            lines = null;
+        }
+        return remaining;
+    }
+
+    /**
+     * @return The number of bytes in the head as it was read
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The value of the first header with the given name, or null if there is none. Only this header is decoded.
+     */
+    public String getHeader(final String name) {
+        final int line = findLine(name, 1);
+        if (line == -1) {
+            return null;
+        }
+        int start = lines[line * 3 + 1] + 1;
+        int end = lines[line * 3 + 2];
+        while (end > start && isWhitespace(byteAt(end - 1))) {
+            --end;
+        }
+        while (start < end && isLinearWhitespace(byteAt(start))) {
+            ++start;
+        }
+        final StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            final byte b = byteAt(i);
+            if (b == '\r' || b == '\n') {
+                //a continuation line is joined with a single space, as the tokenizer does
+                while (i + 1 < end && isWhitespace(byteAt(i + 1))) {
+                    ++i;
+                }
+                value.append(' ');
+            } else {
+                value.append((char) (b & 0xFF));
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Replaces every header with the given name with a single header, or adds it if there is none
+     *
+     * @throws IllegalArgumentException if the name is not a token, or the value contains a CR, LF or NUL, or a
+     *                                  character that is not ISO-8859-1. These could otherwise be used to add
+     *                                  headers or requests to the head that is forwarded.
+     */
+    public void setHeader(final String name, final String value) {
+        final byte[] encoded = encodeHeader(name, value);
+        int line = findLine(name, 1);
+        if (line == -1) {
+            added.add(encoded);
+            return;
+        }
+        replacements[line] = encoded;
+        while ((line = findLine(name, line + 1)) != -1) {
+            replacements[line] = new byte[0];
+        }
+    }
+
+    /**
+     * Removes every header with the given name
+     */
+    public void removeHeader(final String name) {
+        int line = 0;
+        while ((line = findLine(name, line + 1)) != -1) {
+            replacements[line] = new byte[0];
+        }
+        final byte[] prefix = (name + ":").getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = added.size() - 1; i >= 0; --i) {
+            if (startsWithIgnoreCase(added.get(i), prefix)) {
+                added.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return The head with any changes applied, as buffers for a gathering write. Unchanged parts of the head are
+     *         views of the original buffers.
+     */
+    public ByteBuffer[] getBuffers() {
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        if (lines == null && added.isEmpty()) {
+            //nothing has changed
+            for (final ByteBuffer span : spans) {
+                buffers.add(span.duplicate());
+            }
+            return buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+        indexLines();
+        //the start of the part of the head that has not been passed on yet
+        int keptFrom = 0;
+        for (int line = 0; line < lineCount; ++line) {
+            final int start = lines[line * 3];
+            if (line == lineCount - 1 && !added.isEmpty()) {
+                addSpans(buffers, keptFrom, start);
+                for (final byte[] header : added) {
+                    buffers.add(ByteBuffer.wrap(header));
+                }
+                keptFrom = start;
+            }
+            if (replacements[line] != null) {
+                addSpans(buffers, keptFrom, start);
+                if (replacements[line].length > 0) {
+                    buffers.add(ByteBuffer.wrap(replacements[line]));
+                }
+                keptFrom = lines[line * 3 + 2];
+            }
+        }
+        addSpans(buffers, keptFrom, length);
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     * Discards the head so this can be used for the next request
+     */
+    public void clear() {
+        spans.clear();
+        length = 0;
+        lines = null;
+        lineCount = 0;
+        replacements = null;
+        added.clear();
+    }
+
+    private static byte[] encodeHeader(final String name, final String value) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Empty header name");
+        }
+        final byte[] encoded = new byte[name.length() + value.length() + 4];
+        int pos = 0;
+        for (int i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            if (!isTokenChar(c)) {
+                throw new IllegalArgumentException("Invalid character " + (int) c + " in header name " + name);
+            }
+            encoded[pos++] = (byte) c;
+        }
+        encoded[pos++] = ':';
+        encoded[pos++] = ' ';
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0 || c > 0xFF) {
+                throw new IllegalArgumentException("Invalid character " + (int) c + " in value of header " + name);
+            }
+            encoded[pos++] = (byte) c;
+        }
+        encoded[pos++] = '\r';
+        encoded[pos] = '\n';
+        return encoded;
+    }
+
+    /**
+     * @return true if the character can be used in a token (RFC 7230 section 3.2.6)
+     */
+    private static boolean isTokenChar(final char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            return true;
+        }
+        return c < 0x80 && "!#$%&'*+-.^_`|~".indexOf(c) != -1;
+    }
+
+    private void addSpans(final List<ByteBuffer> buffers, final int start, final int end) {
+        if (start == end) {
+            return;
+        }
+        for (int i = spanIndex(start); i < spans.size() && spanStarts[i] < end; ++i) {
+            final ByteBuffer span = spans.get(i).duplicate();
+            span.position(Math.max(start - spanStarts[i], 0));
+            span.limit(Math.min(end - spanStarts[i], span.capacity()));
+            buffers.add(span);
+        }
+    }
+
+    /**
+     * @return The first line at or after <code>from</code> that is a header with the given name, or -1
+     */
+    private int findLine(final String name, final int from) {
+        indexLines();
+        //the last line is the blank line at the end of the head
+        for (int line = from; line < lineCount - 1; ++line) {
+            final int start = lines[line * 3];
+            if (replacements[line] != null && replacements[line].length == 0) {
+                continue;
+            }
+            if (lines[line * 3 + 1] - start != name.length()) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < name.length() && match; ++i) {
+                match = toLowerCase(byteAt(start + i)) == toLowerCase((byte) name.charAt(i));
+            }
+            if (match) {
+                return line;
+            }
+        }
+        return -1;
+    }
+
+    private void indexLines() {
+        if (lines != null) {
+            return;
+        }
+        lines = new int[48];
+        lineCount = 0;
+        int lineStart = 0;
+        int colon = -1;
+        for (int s = 0; s < spans.size(); ++s) {
+            final ByteBuffer span = spans.get(s);
+            for (int j = 0; j < span.limit(); ++j) {
+                final byte b = span.get(j);
+                final int i = spanStarts[s] + j;
+                if (b == ':' && colon == -1) {
+                    colon = i;
+                } else if (b == '\n') {
+                    //a line that starts with whitespace continues the previous header
+                    if (i + 1 < length && lineCount > 0 && isLinearWhitespace(byteAt(i + 1))) {
+                        continue;
+                    }
+                    if (lineCount * 3 == lines.length) {
+                        lines = Arrays.copyOf(lines, lines.length * 2);
+                    }
+                    lines[lineCount * 3] = lineStart;
+                    lines[lineCount * 3 + 1] = colon == -1 ? i + 1 : colon;
+                    lines[lineCount * 3 + 2] = i + 1;
+                    ++lineCount;
+                    lineStart = i + 1;
+                    colon = -1;
+                }
+            }
+        }
+        replacements = new byte[lineCount][];
+    }
+
+    private byte byteAt(final int offset) {
+        final int span = spanIndex(offset);
+        return spans.get(span).get(offset - spanStarts[span]);
+    }
+
+    /**
+     * @return The span that holds the byte at the given offset
+     */
+    private int spanIndex(final int offset) {
+        int low = 0;
+        int high = spans.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (spanStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean isLinearWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toLowerCase(final byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private static boolean startsWithIgnoreCase(final byte[] bytes, final byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (toLowerCase(bytes[i]) != toLowerCase(prefix[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of complete, encoded responses, that is checked once a request has been parsed so that a hit can be
+ * written straight back without dispatching to a handler. This class is thread safe.
+ * <p/>
+ * Responses are keyed on the verb, the path and the values of a fixed set of headers that the responses vary on.
+ * The verb is compared by identity, as the tokenizer passes known verbs on as interned strings, so a request with a
+ * verb that the tokenizer does not know about is never cached. Vary headers that are standard headers of the
+ * tokenizer are looked up in {@link HttpExchangeBuilder#standardHeaders} using the interned name, and any other vary
+ * header in {@link HttpExchangeBuilder#otherHeaders}.
+ * <p/>
+ * Entries expire after their time to live, and once the total size of the cached responses is over the limit the
+ * oldest entries are evicted. Responses are stored in direct buffers, so a hit can be written to the channel without
+ * another copy.
+ *
+ * @author Stuart Douglas
+ */
+public class ResponseCache {
+
+    /**
+     * The estimated size of an entry, not counting the response
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final String[] httpVerbs;
+    private final String[] varyHeaders;
+    private final boolean[] standard;
+    private final long maxSize;
+
+    /**
+     * The entries for each path, which are replaced rather than modified, so a lookup does not need to lock or
+     * create a key
+     */
+    private final ConcurrentHashMap<String, Entry[]> entries = new ConcurrentHashMap<String, Entry[]>();
+    /**
+     * Entries in the order they were added, for eviction. This can also hold entries that have since been replaced.
+     */
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param httpVerbs       The verbs the tokenizer was created with
+     * @param standardHeaders The standard headers the tokenizer was created with
+     * @param varyHeaders     The headers that responses vary on
+     * @param maxSize         The maximum total size of the cached responses, in bytes
+     */
+    public ResponseCache(final String[] httpVerbs, final String[] standardHeaders, final String[] varyHeaders, final long maxSize) {
+        //the configuration is interned, to match what the tokenizer passes on
+        this.httpVerbs = new String[httpVerbs.length];
+        for (int i = 0; i < httpVerbs.length; ++i) {
+            this.httpVerbs[i] = httpVerbs[i].intern();
+        }
+        this.varyHeaders = new String[varyHeaders.length];
+        this.standard = new boolean[varyHeaders.length];
+        for (int i = 0; i < varyHeaders.length; ++i) {
+            this.varyHeaders[i] = varyHeaders[i];
+            for (final String header : standardHeaders) {
+                if (header.equalsIgnoreCase(varyHeaders[i])) {
+                    this.varyHeaders[i] = header.intern();
+                    this.standard[i] = true;
+                    break;
+                }
+            }
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return A view of the cached response for this request, or null if there is none
+     */
+    public ByteBuffer get(final HttpExchangeBuilder exchange) {
+        final Entry[] forPath = entries.get(exchange.path);
+        if (forPath == null) {
+            return null;
+        }
+        for (Entry entry : forPath) {
+            if (entry.matches(exchange, this)) {
+                if (entry.expires <= System.currentTimeMillis()) {
+                    remove(entry);
+                    return null;
+                }
+                return entry.response.duplicate();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches a response, replacing any response that is cached for the same request. The bytes are copied, so the
+     * buffer can be reused once this returns.
+     *
+     * @param response   The encoded response, from its position to its limit. The position is not changed.
+     * @param timeToLive The time in milliseconds that the response can be served for
+     */
+    public void put(final HttpExchangeBuilder exchange, final ByteBuffer response, final long timeToLive) {
+        final int length = response.remaining();
+        if (length + ENTRY_OVERHEAD > maxSize || !isKnownVerb(exchange.verb)) {
+            //too big, or a verb that a lookup could never match
+            return;
+        }
+        final ByteBuffer copy = ByteBuffer.allocateDirect(length);
+        copy.put(response.duplicate());
+        copy.flip();
+        final String[] vary = new String[varyHeaders.length];
+        for (int i = 0; i < vary.length; ++i) {
+            vary[i] = header(exchange, i);
+        }
+        final Entry entry = new Entry(exchange.verb, exchange.path, vary, copy.asReadOnlyBuffer(), System.currentTimeMillis() + timeToLive);
+        while (true) {
+            final Entry[] existing = entries.get(entry.path);
+            Entry replaced = null;
+            final Entry[] updated;
+            if (existing == null) {
+                updated = new Entry[]{entry};
+            } else {
+                int i = 0;
+                while (i < existing.length && !existing[i].matches(exchange, this)) {
+                    ++i;
+                }
+                if (i < existing.length) {
+                    replaced = existing[i];
+                    updated = existing.clone();
+                } else {
+                    updated = Arrays.copyOf(existing, existing.length + 1);
+                }
+                updated[i] = entry;
+            }
+            if (existing == null ? entries.putIfAbsent(entry.path, updated) == null : entries.replace(entry.path, existing, updated)) {
+                if (replaced != null) {
+                    removed(replaced);
+                }
+                size.addAndGet(entry.size());
+                cached.incrementAndGet();
+                break;
+            }
+        }
+        order.add(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    /**
+     * Removes all the responses for the path
+     */
+    public void invalidate(final String path) {
+        final Entry[] removed = entries.remove(path);
+        if (removed != null) {
+            for (Entry entry : removed) {
+                removed(entry);
+            }
+        }
+    }
+
+    /**
+     * @return The total size of the cached responses
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    private void evict() {
+        while (size.get() > maxSize) {
+            final Entry oldest = order.poll();
+            if (oldest == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            remove(oldest);
+        }
+        //if the same responses keep being replaced the queue fills up with entries that are no longer cached
+        if (queued.get() > cached.get() * 2 + 16) {
+            final Iterator<Entry> it = order.iterator();
+            while (it.hasNext()) {
+                if (it.next().removed) {
+                    it.remove();
+                    queued.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the entry, if it is still cached
+     */
+    private void remove(final Entry entry) {
+        while (!entry.removed) {
+            final Entry[] existing = entries.get(entry.path);
+            int i = 0;
+            while (existing != null && i < existing.length && existing[i] != entry) {
+                ++i;
+            }
+            if (existing == null || i == existing.length) {
+                return;
+            }
+            final Entry[] updated = new Entry[existing.length - 1];
+            System.arraycopy(existing, 0, updated, 0, i);
+            System.arraycopy(existing, i + 1, updated, i, updated.length - i);
+            if (updated.length == 0 ? entries.remove(entry.path, existing) : entries.replace(entry.path, existing, updated)) {
+                removed(entry);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called once an entry is no longer reachable from the map
+     */
+    private void removed(final Entry entry) {
+        entry.removed = true;
+        size.addAndGet(-entry.size());
+        cached.decrementAndGet();
+    }
+
+    private boolean isKnownVerb(final String verb) {
+        for (final String known : httpVerbs) {
+            if (known == verb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The value of the vary header with the given index
+     */
+    private String header(final HttpExchangeBuilder exchange, final int index) {
+        return standard[index] ? exchange.standardHeaders.get(varyHeaders[index]) : exchange.otherHeaders.get(varyHeaders[index]);
+    }
+
+    /**
+     * A cached response
+     */
+    private static final class Entry {
+        final String verb;
+        final String path;
+        final String[] vary;
+        final ByteBuffer response;
+        final long expires;
+
+        /**
+         * Set once the entry has been replaced, evicted or invalidated
+         */
+        volatile boolean removed;
+
+        Entry(final String verb, final String path, final String[] vary, final ByteBuffer response, final long expires) {
+            this.verb = verb;
+            this.path = path;
+            this.vary = vary;
+            this.response = response;
+            this.expires = expires;
+        }
+
+        boolean matches(final HttpExchangeBuilder exchange, final ResponseCache cache) {
+            if (exchange.verb != verb) {
+                return false;
+            }
+            for (int i = 0; i < vary.length; ++i) {
+                final String value = cache.header(exchange, i);
+                if (value == null ? vary[i] != null : !value.equals(vary[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long size() {
+            return response.capacity() + ENTRY_OVERHEAD;
+        }
+    }
+}
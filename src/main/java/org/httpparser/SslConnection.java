@@ -0,0 +1,302 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * The TLS layer of a connection, using an {@link SSLEngine} and buffers from a {@link BufferPool}. This class is
+ * mutable and not thread safe, it is meant to be used by the I/O thread of the connection.
+ * <p/>
+ * Records are decrypted straight into a pooled buffer that is handed to the caller to pass to
+ * {@link Tokenizer#handle}, so the only copy of the plaintext is the one the engine makes when it decrypts. As many
+ * records as will fit are decrypted into each buffer, so the tokenizer is not called once per record. Likewise
+ * responses are encrypted straight into the pooled buffer that is written to the channel.
+ * <p/>
+ * The encrypted buffers are only held while there is a partial record to read or encrypted data to write, so an
+ * idle connection holds no buffers. Handshake messages are handled as part of reading and writing, and the
+ * engine's delegated tasks are run on the calling thread.
+ *
+ * @author Stuart Douglas
+ */
+public class SslConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final ByteChannel channel;
+
+    /**
+     * Encrypted bytes that have been read but not decrypted yet, in write mode
+     */
+    private BufferPool.PooledBuffer inbound;
+
+    /**
+     * Encrypted bytes that have not been written yet, in write mode
+     */
+    private BufferPool.PooledBuffer outbound;
+
+    private boolean closed;
+
+    /**
+     * @param engine  The engine, which must already have been set to client or server mode
+     * @param pool    The pool, whose buffers must be large enough for a whole TLS record
+     * @param channel The channel, e.g. an XNIO <code>ConnectedStreamChannel</code>
+     */
+    public SslConnection(final SSLEngine engine, final BufferPool pool, final ByteChannel channel) {
+        final int required = Math.max(engine.getSession().getPacketBufferSize(), engine.getSession().getApplicationBufferSize());
+        if (pool.getBufferSize() < required) {
+            throw new IllegalArgumentException("Pool buffers of " + pool.getBufferSize() + " bytes are smaller than a TLS record of " + required + " bytes");
+        }
+        this.engine = engine;
+        this.pool = pool;
+        this.channel = channel;
+    }
+
+    /**
+     * Reads and decrypts as much as is available without blocking. There may still be encrypted data buffered once
+     * this returns, so this should be called until it returns null before waiting for the channel to be readable.
+     *
+     * @return A buffer of plaintext, ready to be read, which the caller must release once the tokenizer has consumed
+     *         it, or null if there is no plaintext yet
+     */
+    public BufferPool.PooledBuffer read() throws IOException {
+        BufferPool.PooledBuffer plaintext = null;
+        try {
+            boolean full = false;
+            while (!closed && !full) {
+                if (inbound == null) {
+                    inbound = pool.allocate();
+                }
+                final ByteBuffer in = inbound.getBuffer();
+                final int read = channel.read(in);
+                if (read == -1) {
+                    closed = true;
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException ignore) {
+                        //the peer did not send a close_notify, which HTTP does not rely on as the messages are delimited
+                    }
+                    break;
+                } else if (in.position() == 0) {
+                    break;
+                }
+                //decrypt every complete record we have, for as long as there is room for another one
+                int stalled = 0;
+                while (!closed && stalled < 2) {
+                    if (plaintext == null) {
+                        plaintext = pool.allocate();
+                    }
+                    final ByteBuffer out = plaintext.getBuffer();
+                    if (out.position() > 0 && out.remaining() < engine.getSession().getApplicationBufferSize()) {
+                        full = true;
+                        break;
+                    }
+                    in.flip();
+                    final SSLEngineResult result;
+                    try {
+                        result = engine.unwrap(in, out);
+                    } finally {
+                        in.compact();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        closed = true;
+                    } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        full = true;
+                    }
+                    handshake(result.getHandshakeStatus());
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW || full) {
+                        break;
+                    }
+                    stalled = result.bytesConsumed() == 0 && result.bytesProduced() == 0 ? stalled + 1 : 0;
+                }
+                if (read == 0) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (plaintext != null) {
+                plaintext.release();
+            }
+            throw e;
+        } finally {
+            if (inbound != null && inbound.getBuffer().position() == 0) {
+                inbound.release();
+                inbound = null;
+            }
+        }
+        if (plaintext != null && plaintext.getBuffer().position() == 0) {
+            plaintext.release();
+            return null;
+        } else if (plaintext != null) {
+            plaintext.getBuffer().flip();
+        }
+        return plaintext;
+    }
+
+    /**
+     * Encrypts and writes as much of the plaintext as the channel will take
+     *
+     * @return true if all of the plaintext has been encrypted and written, otherwise this needs to be called again
+     *         with the rest of the plaintext once the channel is writable, or after {@link #read()} if the handshake
+     *         is waiting for the peer
+     */
+    public boolean write(final ByteBuffer... plaintext) throws IOException {
+        while (hasRemaining(plaintext)) {
+            if (!flush()) {
+                return false;
+            }
+            if (outbound == null) {
+                outbound = pool.allocate();
+            }
+            final SSLEngineResult result = engine.wrap(plaintext, outbound.getBuffer());
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("Connection is closed");
+            }
+            if (handshake(result.getHandshakeStatus()) && result.bytesConsumed() == 0) {
+                //the handshake is waiting for the peer
+                flush();
+                return false;
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Writes any encrypted data that is waiting to be written
+     *
+     * @return true if everything has been written
+     */
+    public boolean flush() throws IOException {
+        if (outbound == null) {
+            return true;
+        }
+        final ByteBuffer out = outbound.getBuffer();
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) {
+                    return false;
+                }
+            }
+        } finally {
+            out.compact();
+        }
+        outbound.release();
+        outbound = null;
+        return true;
+    }
+
+    /**
+     * Sends a close_notify, and releases any buffers that are held. The channel is not closed.
+     *
+     * @return true once the close_notify has been written. Otherwise the channel did not take all of it, and the
+     *         encrypted buffer is kept until this is called again once the channel is writable.
+     */
+    public boolean close() throws IOException {
+        if (inbound != null) {
+            inbound.release();
+            inbound = null;
+        }
+        engine.closeOutbound();
+        try {
+            while (!engine.isOutboundDone()) {
+                if (outbound == null) {
+                    outbound = pool.allocate();
+                }
+                engine.wrap(EMPTY, outbound.getBuffer());
+                if (!flush()) {
+                    return false;
+                }
+            }
+            //the end of the close_notify may still be waiting from an earlier call
+            return flush();
+        } catch (IOException | RuntimeException e) {
+            if (outbound != null) {
+                outbound.release();
+                outbound = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true once the peer has closed the connection
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Runs delegated tasks and sends handshake messages until the engine needs data from the peer
+     *
+     * @return true if the handshake is still in progress
+     */
+    private boolean handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK: {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                }
+                case NEED_WRAP: {
+                    if (outbound == null) {
+                        outbound = pool.allocate();
+                    }
+                    final SSLEngineResult result = engine.wrap(EMPTY, outbound.getBuffer());
+                    //the messages are written now, but if the channel is full flush() has to be called when it is writable
+                    flush();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        return true;
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                }
+                case NEED_UNWRAP:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.xnio.channels.StreamSinkChannel;
+
+/**
+ * Serves files from a directory. The body is sent with {@link StreamSinkChannel#transferFrom(FileChannel, long, long)},
+ * which for a socket channel uses {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so the file is never copied into the heap and on Linux is sent with <code>sendfile</code>.
+ * <p/>
+ * Open file channels are kept in a bounded LRU cache along with the metadata and response headers of the file, so
+ * a request for a cached file does not touch the file system, other than checking the file has not changed at most
+ * once every {@link #REVALIDATE_INTERVAL} milliseconds. Conditional requests are answered from the cached
+ * <code>ETag</code> and <code>Last-Modified</code>. A single byte range is supported, requests for multiple ranges
+ * get the whole file.
+ * <p/>
+ * The request path is not percent decoded.
+ *
+ * @author Stuart Douglas
+ */
+public class StaticFileHandler {
+
+    /**
+     * How often a cached file is checked to see if it has changed on disk
+     */
+    public static final long REVALIDATE_INTERVAL = 1000;
+
+    private static final byte[] NOT_FOUND = response(404, "Not Found", 0, null).getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BAD_REQUEST = response(400, "Bad Request", 0, null).getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] METHOD_NOT_ALLOWED = response(405, "Method Not Allowed", 0, "Allow: GET, HEAD\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final File root;
+    private final int maxCachedFiles;
+
+    /**
+     * Guards the cache and the reference counts of the cached files
+     */
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CachedFile> cache;
+
+    /**
+     * @param root           The directory that files are served from
+     * @param maxCachedFiles The maximum number of files that are kept open
+     */
+    public StaticFileHandler(final File root, final int maxCachedFiles) {
+        this.root = root;
+        this.maxCachedFiles = maxCachedFiles;
+        this.cache = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedFile> eldest) {
+                if (size() > StaticFileHandler.this.maxCachedFiles) {
+                    //files that are still being sent are closed when the last response is done with them
+                    eldest.getValue().release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates the response to a request. The response must be sent with {@link Response#send(StreamSinkChannel)}, or
+     * closed if the connection is closed before it is sent.
+     */
+    public Response handle(final HttpExchangeBuilder exchange) throws IOException {
+        final boolean head = exchange.verb.equals("HEAD");
+        if (!head && !exchange.verb.equals("GET")) {
+            return new Response(405, METHOD_NOT_ALLOWED);
+        }
+        String path = exchange.path;
+        final int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        if (!path.startsWith("/") || path.contains("/../") || path.endsWith("/..") || path.indexOf('\0') != -1) {
+            return new Response(400, BAD_REQUEST);
+        }
+        final CachedFile file = acquire(path);
+        if (file == null) {
+            return new Response(404, NOT_FOUND);
+        }
+
+        final String ifNoneMatch = header(exchange, "If-None-Match");
+        final boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(file.etag);
+        } else {
+            //the header only has a resolution of seconds
+            notModified = exchange.getIfModifiedSince() != -1 && file.lastModified / 1000 * 1000 <= exchange.getIfModifiedSince();
+        }
+        if (notModified) {
+            file.release();
+            return new Response(304, file.notModifiedHeaders);
+        }
+
+        final String range = header(exchange, "Range");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+            long start;
+            long end;
+            int dash = range.indexOf('-');
+            try {
+                if (dash == -1) {
+                    start = -1;
+                    end = -1;
+                } else if (dash == 6) {
+                    //a suffix, i.e. the last n bytes
+                    start = Math.max(file.length - Long.parseLong(range.substring(7).trim()), 0);
+                    end = file.length - 1;
+                } else {
+                    start = Long.parseLong(range.substring(6, dash).trim());
+                    end = dash == range.length() - 1 ? file.length - 1 : Math.min(Long.parseLong(range.substring(dash + 1).trim()), file.length - 1);
+                }
+            } catch (NumberFormatException e) {
+                start = -1;
+                end = -1;
+                dash = -1;
+            }
+            if (start >= 0 && start <= end) {
+                final String headers = response(206, "Partial Content", end - start + 1,
+                        "Content-Range: bytes " + start + "-" + end + "/" + file.length + "\r\n" + file.headers);
+                return new Response(206, headers.getBytes(StandardCharsets.ISO_8859_1), file, start, head ? 0 : end - start + 1);
+            } else if (start >= file.length || dash == 6) {
+                file.release();
+                final String headers = response(416, "Requested Range Not Satisfiable", 0, "Content-Range: bytes */" + file.length + "\r\n");
+                return new Response(416, headers.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            //a syntactically invalid range is ignored
+        }
+        return new Response(200, file.okHeaders, file, 0, head ? 0 : file.length);
+    }
+
+    /**
+     * Closes all the cached files. Responses that are still being sent keep their file open until they are done.
+     */
+    public void close() {
+        synchronized (lock) {
+            for (CachedFile file : cache.values()) {
+                file.release();
+            }
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return The cached file with an extra reference that the caller must release, or null if there is no such file
+     */
+    private CachedFile acquire(final String path) throws IOException {
+        CachedFile cached;
+        synchronized (lock) {
+            cached = cache.get(path);
+            if (cached != null) {
+                ++cached.references;
+            }
+        }
+        final long now = System.currentTimeMillis();
+        if (cached != null) {
+            if (now - cached.checked < REVALIDATE_INTERVAL) {
+                return cached;
+            }
+            final File file = new File(root, path);
+            if (file.lastModified() == cached.lastModified && file.length() == cached.length) {
+                cached.checked = now;
+                return cached;
+            }
+            synchronized (lock) {
+                if (cache.get(path) == cached) {
+                    cache.remove(path);
+                    cached.release();
+                }
+            }
+            cached.release();
+        }
+
+        final File file = new File(root, path);
+        if (!file.isFile()) {
+            return null;
+        }
+        final FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException e) {
+            return null;
+        }
+        //the metadata is read after the file is opened, so it can't be older than what we send
+        final CachedFile created = new CachedFile(in.getChannel(), file.length(), file.lastModified(), now);
+        synchronized (lock) {
+            final CachedFile existing = cache.get(path);
+            if (existing != null) {
+                //another thread opened it first
+                ++existing.references;
+                created.release();
+                return existing;
+            }
+            ++created.references;
+            cache.put(path, created);
+        }
+        return created;
+    }
+
+    private static String header(final HttpExchangeBuilder exchange, final String name) {
+        final String value = exchange.standardHeaders.get(name);
+        return value != null ? value : exchange.otherHeaders.get(name);
+    }
+
+    private static String response(final int status, final String reason, final long contentLength, final String headers) {
+        return "HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: " + contentLength + "\r\n" + (headers == null ? "" : headers) + "\r\n";
+    }
+
+    /**
+     * An open file and the headers that go with it. The cache holds one reference, and every response that sends the
+     * file holds another. The channel is closed when the last reference is released.
+     */
+    private final class CachedFile {
+        final FileChannel channel;
+        final long length;
+        final long lastModified;
+        final String etag;
+        /**
+         * The headers that do not depend on the request
+         */
+        final String headers;
+        final byte[] okHeaders;
+        final byte[] notModifiedHeaders;
+
+        volatile long checked;
+        /**
+         * guarded by the lock of the handler
+         */
+        int references = 1;
+
+        CachedFile(final FileChannel channel, final long length, final long lastModified, final long checked) {
+            this.channel = channel;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checked = checked;
+            this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            this.headers = "ETag: " + etag + "\r\nLast-Modified: " + format.format(new Date(lastModified)) + "\r\nAccept-Ranges: bytes\r\n";
+            this.okHeaders = response(200, "OK", length, headers).getBytes(StandardCharsets.ISO_8859_1);
+            this.notModifiedHeaders = ("HTTP/1.1 304 Not Modified\r\n" + headers + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        void release() {
+            synchronized (lock) {
+                if (--references != 0) {
+                    return;
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * A response that is ready to be written. It is written without blocking, so {@link #send(StreamSinkChannel)}
+     * may need to be called again when the channel is writable.
+     */
+    public static final class Response {
+        private final int status;
+        private final ByteBuffer headers;
+        private CachedFile file;
+        private long position;
+        private long remaining;
+
+        Response(final int status, final byte[] headers) {
+            this(status, headers, null, 0, 0);
+        }
+
+        Response(final int status, final byte[] headers, final CachedFile file, final long position, final long remaining) {
+            this.status = status;
+            this.headers = ByteBuffer.wrap(headers);
+            this.file = file;
+            this.position = position;
+            this.remaining = remaining;
+            if (remaining == 0) {
+                close();
+            }
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return A view of the response headers
+         */
+        public ByteBuffer getHeaders() {
+            return headers.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The number of bytes of the file that are still to be sent
+         */
+        public long getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * Writes as much of the response as the channel will take
+         *
+         * @return true if the whole response has been written
+         */
+        public boolean send(final StreamSinkChannel channel) throws IOException {
+            while (headers.hasRemaining()) {
+                if (channel.write(headers) == 0) {
+                    return false;
+                }
+            }
+            while (remaining > 0) {
+                final long sent = channel.transferFrom(file.channel, position, remaining);
+                if (sent <= 0) {
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            close();
+            return true;
+        }
+
+        /**
+         * Releases the file. This is done automatically once the response has been sent.
+         */
+        public void close() {
+            if (file != null) {
+                file.release();
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A tokenizer that starts out on an {@link InterpretedTokenizer}, and once it has seen enough requests generates
+ * the bytecode tokenizer in the background and switches over to it.
+ * <p/>
+ * The two tokenizers only agree on the meaning of {@link TokenState#parseState} between tokens, so a token is
+ * always finished by the tokenizer that started it. {@link TokenState#compiledToken} records which one that was,
+ * and a request that is part way through a token when the promotion happens carries on with the interpreter until
+ * it reaches the end of the token.
+ *
+ * @author Stuart Douglas
+ */
+final class TieredTokenizer implements Tokenizer {
+
+    private final Tokenizer interpreter;
+    private final String[] httpVerbs;
+    private final String[] httpVersions;
+    private final String[] standardHeaders;
+    private final String[] materializedHeaders;
+    private final int promotionThreshold;
+    private final Executor executor;
+    private final AtomicBoolean promoting = new AtomicBoolean();
+
+    /**
+     * The number of requests that the interpreter has started. This is not synchronized, as it only needs to
+     * be roughly right.
+     */
+    private int requests;
+
+    private volatile Tokenizer compiled;
+
+    TieredTokenizer(final String[] httpVerbs, final String[] httpVersions, final String[] standardHeaders, final String[] materializedHeaders, final int promotionThreshold, final Executor executor) {
+        this.interpreter = TokenizerGenerator.createInterpretedTokenizer(httpVerbs, httpVersions, standardHeaders, materializedHeaders);
+        this.httpVerbs = httpVerbs.clone();
+        this.httpVersions = httpVersions.clone();
+        this.standardHeaders = standardHeaders.clone();
+        this.materializedHeaders = materializedHeaders == null ? null : materializedHeaders.clone();
+        this.promotionThreshold = promotionThreshold;
+        this.executor = executor;
+    }
+
+    @Override
+    public int handle(final ByteBuffer buffer, final int noBytes, final TokenState currentState, final TokenHandler handler) {
+        final Tokenizer compiled = this.compiled;
+        if (compiled != null) {
+            if (currentState.compiledToken || isBetweenTokens(currentState)) {
+                //once handed over the state never goes back to the interpreter
+                currentState.compiledToken = true;
+                return compiled.handle(buffer, noBytes, currentState, handler);
+            }
+        } else if (currentState.state == TokenState.VERB && currentState.parseState == 0 && ++requests >= promotionThreshold) {
+            promote();
+        }
+        return interpreter.handle(buffer, noBytes, currentState, handler);
+    }
+
+    /**
+     * @return true once the generated tokenizer is in use
+     */
+    boolean isPromoted() {
+        return compiled != null;
+    }
+
+    /**
+     * Generates the tokenizer on the executor. If the executor rejects the task or generation fails the interpreter
+     * carries on, and promotion is tried again once another <code>promotionThreshold</code> requests have been seen.
+     * A generation failure is rethrown so the executor can report it.
+     */
+    private void promote() {
+        if (!promoting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compiled = TokenizerGenerator.createTokenizer(httpVerbs, httpVersions, standardHeaders, materializedHeaders);
+                    } catch (RuntimeException | Error e) {
+                        promotionFailed();
+                        throw e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            promotionFailed();
+        }
+    }
+
+    private void promotionFailed() {
+        requests = 0;
+        promoting.set(false);
+    }
+
+    private static boolean isBetweenTokens(final TokenState state) {
+        switch (state.state) {
+            case TokenState.VERB:
+            case TokenState.VERSION:
+            case TokenState.HEADER:
+                //a prefix match is part way through a token, so it is finished by the tokenizer that started it
+                return state.parseState == 0 || state.parseState == TokenState.NO_STATE;
+            default:
+                //the path and header values are parsed by the same code in both tokenizers
+                return true;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+/**
+ * A hashed timer wheel. This class is mutable and not thread safe, it is meant to be owned by a single I/O thread,
+ * which calls {@link #expire(long)} each time round its event loop.
+ * <p/>
+ * Timeouts are intrusive list nodes, so scheduling, rescheduling and cancelling are constant time and allocate
+ * nothing. Each bucket covers one tick, and a timeout that is more than a full turn of the wheel away just stays in
+ * its bucket until it is visited on the turn where it is due, as the deadline is checked rather than counting turns.
+ * Timeouts fire no earlier than their deadline, and no later than one tick after it plus however late
+ * {@link #expire(long)} is called.
+ *
+ * @author Stuart Douglas
+ */
+public class TimerWheel {
+
+    private final long tickMillis;
+    /**
+     * The buckets of the wheel, followed by the list of timeouts that have expired but have not fired yet
+     */
+    private final Timeout[] buckets;
+    private final int mask;
+    private final int pending;
+
+    /**
+     * The tick that was last expired
+     */
+    private long tick;
+
+    private int size;
+
+    /**
+     * @param tickMillis The resolution of the wheel
+     * @param wheelSize  The number of buckets, this is rounded up to a power of two
+     * @param now        The current time in milliseconds
+     */
+    public TimerWheel(final long tickMillis, final int wheelSize, final long now) {
+        this.tickMillis = tickMillis;
+        final int capacity = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.buckets = new Timeout[capacity + 1];
+        this.mask = capacity - 1;
+        this.pending = capacity;
+        this.tick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the timeout, moving it if it is already scheduled
+     *
+     * @param deadline The time in milliseconds when the timeout expires
+     */
+    public void schedule(final Timeout timeout, final long deadline) {
+        if (timeout.bucket != -1) {
+            unlink(timeout);
+        }
+        //a deadline that has already passed goes in the current bucket, so it fires on the next call to expire
+        timeout.deadline = deadline;
+        link(timeout, (int) Math.max(deadline / tickMillis, tick) & mask);
+    }
+
+    /**
+     * Cancels the timeout, if it is scheduled
+     */
+    public void cancel(final Timeout timeout) {
+        if (timeout.bucket != -1) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * Fires every timeout whose deadline has passed. Timeouts can be scheduled and cancelled from
+     * {@link Timeout#expired(long)}.
+     *
+     * @return The number of timeouts that fired
+     */
+    public int expire(final long now) {
+        final long target = now / tickMillis;
+        int fired = 0;
+        if (target - tick > mask) {
+            //we are more than a full turn behind, so every bucket needs to be checked once
+            for (int i = 0; i <= mask; ++i) {
+                fired += expire(i, now);
+            }
+            tick = target;
+            return fired;
+        }
+        while (true) {
+            fired += expire((int) tick & mask, now);
+            if (tick >= target) {
+                return fired;
+            }
+            ++tick;
+        }
+    }
+
+    /**
+     * @return The number of scheduled timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    private int expire(final int bucket, final long now) {
+        //move the expired timeouts to the pending list first, as the callbacks can change this bucket
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.deadline <= now) {
+                unlink(timeout);
+                link(timeout, pending);
+            }
+            timeout = next;
+        }
+        int fired = 0;
+        while (buckets[pending] != null) {
+            timeout = buckets[pending];
+            unlink(timeout);
+            ++fired;
+            timeout.expired(now);
+        }
+        return fired;
+    }
+
+    private void link(final Timeout timeout, final int bucket) {
+        final Timeout head = buckets[bucket];
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        ++size;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.prev == null) {
+            buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        --size;
+    }
+
+    /**
+     * Something that can be scheduled on a wheel. A timeout can only be scheduled on one wheel at a time.
+     */
+    public abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long deadline;
+
+        /**
+         * Called by {@link TimerWheel#expire(long)} once the deadline has passed. The timeout is no longer scheduled.
+         */
+        protected abstract void expired(long now);
+
+        public boolean isScheduled() {
+            return bucket != -1;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
@@ -22,24 +22,48 @@
 
 package org.httpparser;
 
-import java.util.List;
-
 /**
- * Class that takes a taken from a given tokenizer.
+ * Receives the parts of a request as the tokenizer recognises them.
+ * <p/>
+ * Byte spans are only valid for the duration of the call, as the tokenizer reuses the array for the next token.
+ * Every method returns <code>true</code> to stop parsing, in which case the tokenizer returns straight away
+ * and the parse state is set to {@link TokenState#PARSE_STOPPED}.
+ * <p/>
+ * Configured verbs, versions and header names are passed as interned strings, not the instances that were passed
+ * to the generator, so they can be compared by identity with interned constants.
  *
  * @author Stuart Douglas
+ * @see HttpExchangeBuilder
  */
-public final class TokenHandler {
+public interface TokenHandler {
+
+    /**
+     * @param verb The verb. If this is one of the configured verbs then it is the interned string.
+     */
+    boolean handleVerb(String verb);
+
+    boolean handlePath(byte[] bytes, int offset, int length);
+
+    /**
+     * @param version The HTTP version. If this is one of the configured versions then it is the interned string.
+     */
+    boolean handleVersion(String version);
 
-    private final List<String> tokens;
+    /**
+     * Called for a header that is one of the configured standard headers
+     *
+     * @param header The header name, this is the interned string so it can be compared by identity
+     */
+    boolean handleStandardHeader(String header, byte[] value, int offset, int length);
 
-    public TokenHandler(final List<String> tokens) {
-        this.tokens = tokens;
-    }
+    /**
+     * Called for any header that is not one of the configured standard headers
+     */
+    boolean handleOtherHeader(String header, byte[] value, int offset, int length);
 
-    final boolean handleToken(final String token){
-        tokens.add(token);
-        return false;
-    }
+    /**
+     * Called once the blank line that ends the header block has been read
+     */
+    boolean handleHeadersComplete();
 
 }
@@ -22,10 +22,17 @@
 
 package org.httpparser;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * The current state of the tokenizer state machine. This class is mutable and not thread safe.
  * <p/>
  * As the machine changes state this class is updated rather than allocating a new one each time.
+ * <p/>
+ * A connection keeps its state while it is idle, so once a request has been parsed {@link #reset()} should be called
+ * to drop every reference the state holds. The scratch area is handed back to the thread, and taken again by
+ * whichever state on that thread next needs one, so an idle state is just its primitive fields.
  *
  * fields are not private to allow for efficient putfield / getfield access
  *
@@ -36,6 +43,10 @@ public class TokenState {
     //state machine states
     public static final int NO_STATE = -1;
     public static final int PREFIX_MATCH = -2;
+    /**
+     * As {@link #PREFIX_MATCH}, but the token being matched is not wanted by the handler
+     */
+    public static final int PREFIX_MATCH_SKIP = -3;
 
 
     //parsing states
@@ -45,6 +56,27 @@ public class TokenState {
     public static final int HEADER = 3;
     public static final int HEADER_VALUE = 4;
     public static final int PARSE_COMPLETE = 5;
+    /**
+     * The token handler asked for parsing to stop
+     */
+    public static final int PARSE_STOPPED = 6;
+
+    private static final int INITIAL_TOKEN_SIZE = 64;
+
+    /**
+     * Scratch areas are not kept if they have grown larger than this, so one huge token does not pin memory forever
+     */
+    private static final int MAX_SPARE_TOKEN_SIZE = 8 * 1024;
+
+    /**
+     * A scratch area for each thread that is not being used by any state
+     */
+    private static final ThreadLocal<SpareTokenBytes> SPARE_TOKEN_BYTES = new ThreadLocal<SpareTokenBytes>() {
+        @Override
+        protected SpareTokenBytes initialValue() {
+            return new SpareTokenBytes();
+        }
+    };
 
     /**
      * The actual state of request parsing
@@ -73,9 +105,26 @@ public class TokenState {
     int pos;
 
     /**
-     * If this is in {@link #NO_STATE} then this holds the current token that has been read so far.
+     * Scratch area that holds the bytes of the current token, if it is being read one byte at a time
+     * (i.e. in {@link #NO_STATE}, or while reading the path or a header value). This is reused for every
+     * token, and only grows if a token is larger than anything that has been seen before.
      */
-    StringBuilder stringBuilder;
+    byte[] tokenBytes;
+
+    /**
+     * The number of bytes in {@link #tokenBytes} that make up the current token.
+     */
+    int tokenLength;
+
+    /**
+     * The name of the header whose value is being read, if it is one of the configured standard headers
+     */
+    String nextStandardHeader;
+
+    /**
+     * The name of the header whose value is being read, if it is not one of the configured standard headers
+     */
+    String nextOtherHeader;
 
     /**
      * This has different meanings depending on the current state.
@@ -87,9 +136,108 @@ public class TokenState {
      */
     byte leftOver;
 
+    /**
+     * Set once a {@link TieredTokenizer} has handed this state to its generated tokenizer, which then finishes the
+     * request, as a token that the generated tokenizer has started cannot be carried on by the interpreter
+     */
+    boolean compiledToken;
+
+    /**
+     * The timings of the current request, if it is being parsed by a {@link TracingTokenizer}
+     */
+    ParseTrace trace;
+
     public TokenState() {
         this.parseState = 0;
         this.current = null;
         this.pos = 0;
     }
+
+    /**
+     * Starts a new token in the scratch area, using the first <code>length</code> characters of
+     * <code>prefix</code>, which is the part of the token that has already been matched.
+     */
+    final void startToken(final String prefix, final int length) {
+        byte[] bytes = tokenBytes;
+        if (bytes == null) {
+            tokenBytes = bytes = spareTokenBytes();
+        }
+        if (bytes.length < length) {
+            tokenBytes = bytes = new byte[Math.max(INITIAL_TOKEN_SIZE, length * 2)];
+        }
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) prefix.charAt(i);
+        }
+        tokenLength = length;
+    }
+
+    final void append(final byte next) {
+        byte[] bytes = tokenBytes;
+        if (bytes == null) {
+            tokenBytes = bytes = spareTokenBytes();
+        }
+        if (tokenLength == bytes.length) {
+            tokenBytes = bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        bytes[tokenLength++] = next;
+    }
+
+    /**
+     * Resets the scratch area for the next token, once the current token has been passed on as a span
+     */
+    final void clearToken() {
+        tokenLength = 0;
+    }
+
+    /**
+     * Creates the string for the current token and resets the scratch area for the next one
+     */
+    final String tokenString() {
+        final String token = new String(tokenBytes, 0, tokenLength, StandardCharsets.ISO_8859_1);
+        tokenLength = 0;
+        return token;
+    }
+
+    /**
+     * Resets the state for the next request on the connection, and releases everything that it references except
+     * the trace of a {@link TracingTokenizer}, which is cleared and reused for every request on the connection
+     */
+    public void reset() {
+        state = VERB;
+        parseState = 0;
+        current = null;
+        currentBytes = null;
+        pos = 0;
+        nextStandardHeader = null;
+        nextOtherHeader = null;
+        leftOver = 0;
+        compiledToken = false;
+        if (trace != null) {
+            //kept, but a request that was never dispatched must not leak into the next trace
+            trace.reset();
+        }
+        tokenLength = 0;
+        final byte[] bytes = tokenBytes;
+        if (bytes != null) {
+            tokenBytes = null;
+            final SpareTokenBytes spare = SPARE_TOKEN_BYTES.get();
+            if (spare.bytes == null && bytes.length <= MAX_SPARE_TOKEN_SIZE) {
+                spare.bytes = bytes;
+            }
+        }
+    }
+
+    private static byte[] spareTokenBytes() {
+        final SpareTokenBytes spare = SPARE_TOKEN_BYTES.get();
+        final byte[] bytes = spare.bytes;
+        if (bytes == null) {
+            return new byte[INITIAL_TOKEN_SIZE];
+        }
+        spare.bytes = null;
+        return bytes;
+    }
+
+    private static final class SpareTokenBytes {
+        byte[] bytes;
+    }
 }
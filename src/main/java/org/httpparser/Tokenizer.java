@@ -34,9 +34,9 @@ public interface Tokenizer {
      * @param buffer The byte buffer
      * @param noBytes The number of bytes that can be read from the buffer
      * @param currentState The current token parsing state
-     * @param builder The builder that receives the tokens
+     * @param handler The handler that receives the tokens, e.g. a {@link HttpExchangeBuilder}
      * @return The number of bytes remaining, i.e. noBytes - bytes read
      */
-    int handle(ByteBuffer buffer, int noBytes, final TokenState currentState, final HttpExchangeBuilder builder);
+    int handle(ByteBuffer buffer, int noBytes, final TokenState currentState, final TokenHandler handler);
 
 }
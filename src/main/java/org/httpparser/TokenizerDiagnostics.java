@@ -0,0 +1,182 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes what the generator produced for a tokenizer, so that the effect of a change to the configured
+ * values can be seen. This is available from {@link TokenizerGenerator#getDiagnostics(Tokenizer)}.
+ *
+ * @author Stuart Douglas
+ */
+public final class TokenizerDiagnostics {
+
+    private final String className;
+    private final Map<String, StateMachine> stateMachines;
+    private final Map<String, Integer> methodSizes;
+    private final long generationTime;
+    private final long defineTime;
+    private final int classSize;
+    private final byte[] classBytes;
+
+    TokenizerDiagnostics(final String className, final Map<String, StateMachine> stateMachines, final Map<String, Integer> methodSizes, final long generationTime, final long defineTime, final int classSize, final byte[] classBytes) {
+        this.className = className;
+        this.stateMachines = Collections.unmodifiableMap(stateMachines);
+        this.methodSizes = methodSizes;
+        this.generationTime = generationTime;
+        this.defineTime = defineTime;
+        this.classSize = classSize;
+        this.classBytes = classBytes;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return The state machines, keyed by the name of their main method, e.g. {@link TokenizerGenerator#HANDLE_HEADER}
+     */
+    public Map<String, StateMachine> getStateMachines() {
+        return stateMachines;
+    }
+
+    /**
+     * @return The size of the bytecode of each generated method, keyed by method name
+     */
+    public Map<String, Integer> getMethodSizes() {
+        return methodSizes;
+    }
+
+    /**
+     * @return The time spent building the tries and generating the bytecode, in nanoseconds
+     */
+    public long getGenerationTime() {
+        return generationTime;
+    }
+
+    /**
+     * @return The time spent defining, compiling and instantiating the class, in nanoseconds
+     */
+    public long getDefineTime() {
+        return defineTime;
+    }
+
+    /**
+     * @return The size of the class file, in bytes
+     */
+    public int getClassSize() {
+        return classSize;
+    }
+
+    /**
+     * @return The class file of the tokenizer, which can be written out and disassembled with <code>javap</code>, or
+     *         null if the tokenizer was not created with detailed diagnostics
+     */
+    public byte[] getClassBytes() {
+        return classBytes == null ? null : classBytes.clone();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(className).append(": generated in ").append(generationTime / 1000).append("us, defined in ")
+                .append(defineTime / 1000).append("us, ").append(classSize).append(" bytes\n");
+        for (final StateMachine stateMachine : stateMachines.values()) {
+            sb.append("  ").append(stateMachine.getName()).append(": ").append(stateMachine.getStates()).append(" states, ")
+                    .append(stateMachine.getPrefixMatchStates()).append(" prefix match states, methods ")
+                    .append(stateMachine.getMethods()).append('\n');
+        }
+        for (final Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(methodSizes).entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append(" bytes\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The trie that one of the state machines was generated from
+     */
+    public static final class StateMachine {
+
+        private final String name;
+        private final int states;
+        private final int prefixMatchStates;
+        private final List<String> fields;
+        private final List<String> methods;
+        private final String dot;
+
+        StateMachine(final String name, final int states, final int prefixMatchStates, final List<String> fields, final List<String> methods, final String dot) {
+            this.name = name;
+            this.states = states;
+            this.prefixMatchStates = prefixMatchStates;
+            this.fields = Collections.unmodifiableList(fields);
+            this.methods = Collections.unmodifiableList(methods);
+            this.dot = dot;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of numbered states, including the initial state
+         */
+        public int getStates() {
+            return states;
+        }
+
+        public int getPrefixMatchStates() {
+            return prefixMatchStates;
+        }
+
+        /**
+         * @return The names of the <code>STATE_BYTES_N</code> fields that hold the values the prefix match states compare against
+         */
+        public List<String> getFields() {
+            return fields;
+        }
+
+        /**
+         * @return The names of the methods the state machine was generated in, more than one if it had to be split
+         */
+        public List<String> getMethods() {
+            return methods;
+        }
+
+        StateMachine withDot(final String dot) {
+            return new StateMachine(name, states, prefixMatchStates, fields, methods, dot);
+        }
+
+        /**
+         * @return The trie as a graphviz DOT graph, or null if the tokenizer was not created with detailed diagnostics.
+         *         Numbered states are circles, prefix match states are boxes labelled with the value they match, and
+         *         states where a value can end have a double border.
+         */
+        public String getDot() {
+            return dot;
+        }
+    }
+}
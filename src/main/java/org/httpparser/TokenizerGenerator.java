@@ -23,15 +23,23 @@
 package org.httpparser;
 
 import java.lang.reflect.Modifier;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -56,13 +64,19 @@ public class TokenizerGenerator {
     private static final int BYTE_BUFFER_VAR = 1;
     private static final int BYTES_REMAINING_VAR = 2;
     private static final int TOKEN_STATE_VAR = 3;
-    private static final int HTTP_EXCHANGE_BUILDER = 4;
+    private static final int TOKEN_HANDLER_VAR = 4;
     private static final int CURRENT_STATE_VAR = 5;
     private static final int STATE_POS_VAR = 6;
     private static final int STATE_CURRENT_VAR = 7;
-    private static final int STATE_STRING_BUILDER_VAR = 8;
-    private static final int STATE_CURRENT_BYTES_VAR = 9;
-    private static final int STATE_LAST_CHAR_WAS_CARRIAGE_RETURN = 10;
+    private static final int STATE_CURRENT_BYTES_VAR = 8;
+    private static final int BUFFER_BASE_VAR = 9;
+    private static final int BUFFER_INDEX_VAR = 10;
+    //this is a long so it must be the last variable
+    private static final int BUFFER_ADDRESS_VAR = 11;
+
+    //local variables of the generated matchers
+    private static final int MATCHER_BYTES_VAR = 1;
+    private static final int MATCHER_LENGTH_VAR = 2;
 
     public static final String HANDLE_HTTP_VERB = "handleHttpVerbs";
     public static final String HANDLE_PATH = "handlePath";
@@ -70,7 +84,71 @@ public class TokenizerGenerator {
     public static final String HANDLE_HEADER = "handleHeader";
     public static final String HANDLE_HEADER_VALUE = "handleHeaderValue";
 
+    /**
+     * HotSpot will not JIT compile a method with more bytecode than this, see <code>-XX:HugeMethodLimit</code>
+     */
+    public static final int MAX_METHOD_SIZE = 8000;
+
+    /**
+     * The number of requests a tiered tokenizer handles before it generates the bytecode tokenizer. The tokenizer is
+     * generated in the background, so this only has to be high enough that short lived tools and tests never pay
+     * for it.
+     */
+    public static final int DEFAULT_PROMOTION_THRESHOLD = 10000;
+
+    /**
+     * Runs each task on a new daemon thread, so promoting a tiered tokenizer never holds up a request
+     */
+    private static final Executor BACKGROUND_THREAD = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            final Thread thread = new Thread(command, "tokenizer-generator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    };
+
+    /**
+     * The name used for classes that are only generated to measure the size of a method
+     */
+    private static final String SCRATCH_CLASS_NAME = Tokenizer.class.getName() + "$$Scratch";
+
     public static Tokenizer createTokenizer(final String[] httpVerbs, String[] httpVersions, String[] standardHeaders) {
+        return createTokenizer(httpVerbs, httpVersions, standardHeaders, MAX_METHOD_SIZE);
+    }
+
+    /**
+     * @param maxMethodSize The maximum bytecode size of a generated method. State machines that would be larger than
+     *                      this are split into several methods.
+     */
+    public static Tokenizer createTokenizer(final String[] httpVerbs, String[] httpVersions, String[] standardHeaders, final int maxMethodSize) {
+        return createTokenizer(httpVerbs, httpVersions, standardHeaders, null, maxMethodSize);
+    }
+
+    /**
+     * @param materializedHeaders The only headers that are passed to the token handler. The values of all other headers
+     *                            are skipped over without being stored. These do not have to be standard headers.
+     */
+    public static Tokenizer createTokenizer(final String[] httpVerbs, String[] httpVersions, String[] standardHeaders, final String[] materializedHeaders) {
+        return createTokenizer(httpVerbs, httpVersions, standardHeaders, materializedHeaders, MAX_METHOD_SIZE);
+    }
+
+    /**
+     * @param materializedHeaders The only headers that are passed to the token handler, or null to pass on every header
+     * @param maxMethodSize       The maximum bytecode size of a generated method
+     */
+    public static Tokenizer createTokenizer(final String[] httpVerbs, String[] httpVersions, String[] standardHeaders, final String[] materializedHeaders, final int maxMethodSize) {
+        return createTokenizer(httpVerbs, httpVersions, standardHeaders, materializedHeaders, maxMethodSize, false);
+    }
+
+    /**
+     * @param materializedHeaders The only headers that are passed to the token handler, or null to pass on every header
+     * @param maxMethodSize       The maximum bytecode size of a generated method
+     * @param detailedDiagnostics If the DOT graphs of the tries and the class file should be kept in the
+     *                            {@link TokenizerDiagnostics}. These are built after the generation time is measured.
+     */
+    public static Tokenizer createTokenizer(final String[] httpVerbs, String[] httpVersions, String[] standardHeaders, final String[] materializedHeaders, final int maxMethodSize, final boolean detailedDiagnostics) {
+        final long start = System.nanoTime();
         final String className = Tokenizer.class.getName() + "$$" + nameCounter.incrementAndGet();
         final ClassFile file = new ClassFile(className, TokenizerParent.class.getName(), Tokenizer.class.getName());
 
@@ -83,115 +161,316 @@ public class TokenizerGenerator {
         final ClassMethod sctor = file.addMethod(AccessFlag.PUBLIC | AccessFlag.STATIC, "<clinit>", "V");
         final AtomicInteger fieldCounter = new AtomicInteger(1);
 
-        createStateMachine(httpVerbs, className, file, sctor, fieldCounter, HANDLE_HTTP_VERB, new VerbStateMachine());
-        createStateMachine(httpVersions, className, file, sctor, fieldCounter, HANDLE_HTTP_VERSION, new VersionStateMachine());
-        createStateMachine(standardHeaders, className, file, sctor, fieldCounter, HANDLE_HEADER, new HeaderStateMachine());
+        final Map<String, TokenizerDiagnostics.StateMachine> stateMachines = new LinkedHashMap<String, TokenizerDiagnostics.StateMachine>();
+        final Map<String, State> tries = new HashMap<String, State>();
+        stateMachines.put(HANDLE_HTTP_VERB, createStateMachine(httpVerbs, className, file, sctor, fieldCounter, HANDLE_HTTP_VERB, maxMethodSize, new VerbStateMachine(), tries));
+        stateMachines.put(HANDLE_HTTP_VERSION, createStateMachine(httpVersions, className, file, sctor, fieldCounter, HANDLE_HTTP_VERSION, maxMethodSize, new VersionStateMachine(), tries));
+        if (materializedHeaders == null) {
+            stateMachines.put(HANDLE_HEADER, createStateMachine(standardHeaders, className, file, sctor, fieldCounter, HANDLE_HEADER, maxMethodSize, new HeaderStateMachine(null), tries));
+        } else {
+            //the headers we want have to be in the trie, otherwise we would not know to keep them
+            final Set<String> headers = new LinkedHashSet<String>(Arrays.asList(standardHeaders));
+            headers.addAll(Arrays.asList(materializedHeaders));
+            stateMachines.put(HANDLE_HEADER, createStateMachine(headers.toArray(new String[headers.size()]), className, file, sctor, fieldCounter, HANDLE_HEADER, maxMethodSize, new HeaderStateMachine(new HashSet<String>(Arrays.asList(materializedHeaders))), tries));
+        }
 
-        final ClassMethod handle = file.addMethod(Modifier.PUBLIC, "handle", "I", DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class));
+        final ClassMethod handle = file.addMethod(Modifier.PUBLIC, "handle", "I", DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(TokenHandler.class));
         createHandleBody(className, handle);
 
 
         sctor.getCodeAttribute().returnInstruction();
+        final byte[] classBytes = file.toBytecode();
+        final long generated = System.nanoTime();
         final Class<Tokenizer> cls = (Class<Tokenizer>) file.define(TokenizerGenerator.class.getClassLoader());
         Compiler.compileClass(cls);
+        final Tokenizer tokenizer;
         try {
-            return cls.newInstance();
+            tokenizer = cls.newInstance();
         } catch (InstantiationException e) {
             throw new RuntimeException(e);
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
+        final long defined = System.nanoTime();
+
+        final Map<String, Integer> methodSizes = Collections.unmodifiableMap(BytecodeSizes.read(classBytes));
+        if (detailedDiagnostics) {
+            for (final Map.Entry<String, TokenizerDiagnostics.StateMachine> entry : stateMachines.entrySet()) {
+                entry.setValue(entry.getValue().withDot(createDot(entry.getKey(), tries.get(entry.getKey()))));
+            }
+        }
+        ((TokenizerParent) tokenizer).methodSizes = methodSizes;
+        ((TokenizerParent) tokenizer).diagnostics = new TokenizerDiagnostics(className, stateMachines, methodSizes, generated - start, defined - generated, classBytes.length, detailedDiagnostics ? classBytes : null);
+        return tokenizer;
     }
 
-    private static void createHandleBody(final String className, final ClassMethod handle) {
-        final CodeAttribute c = handle.getCodeAttribute();
-        c.aload(TOKEN_STATE_VAR);
-        c.getfield(TokenState.class.getName(), "state", "I");
-        final Set<BranchEnd> returnSet = new HashSet<>();
-        final TableSwitchBuilder builder = new TableSwitchBuilder(0, 4);
-        final AtomicReference<BranchEnd> verb = builder.add();
-        final AtomicReference<BranchEnd> path = builder.add();
-        final AtomicReference<BranchEnd> http = builder.add();
-        final AtomicReference<BranchEnd> header = builder.add();
-        final AtomicReference<BranchEnd> headerValue = builder.add();
-        c.tableswitch(builder);
-        c.branchEnd(verb.get());
-        c.aload(0);
-        c.loadMethodParameters();
-        c.invokespecial(className, HANDLE_HTTP_VERB, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class)});
-        c.dup();
-        c.istore(BYTES_REMAINING_VAR);
-        returnSet.add(c.ifeq());
-        //we just fall through to the path
-        //we rely on the individual parsing methods to update the state as appropriate
+    /**
+     * @return A description of what was generated for the given tokenizer, or null if it is not a generated tokenizer
+     */
+    public static TokenizerDiagnostics getDiagnostics(final Tokenizer tokenizer) {
+        if (tokenizer instanceof TokenizerParent) {
+            return ((TokenizerParent) tokenizer).diagnostics;
+        }
+        return null;
+    }
 
+    /**
+     * Creates a tokenizer that interprets transition tables built from the same tries as the generated tokenizer.
+     * No classes are generated, so this is cheap to create, however it is slower once the generated tokenizer has
+     * been JIT compiled.
+     */
+    public static Tokenizer createInterpretedTokenizer(final String[] httpVerbs, final String[] httpVersions, final String[] standardHeaders) {
+        return createInterpretedTokenizer(httpVerbs, httpVersions, standardHeaders, null);
+    }
 
-        c.branchEnd(path.get());
-        c.aload(0);
-        c.loadMethodParameters();
-        c.invokespecial(className, HANDLE_PATH, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class)});
-        c.dup();
-        c.istore(BYTES_REMAINING_VAR);
-        returnSet.add(c.ifeq());
+    /**
+     * @param materializedHeaders The only headers that are passed to the token handler, or null to pass on every header
+     */
+    public static Tokenizer createInterpretedTokenizer(final String[] httpVerbs, final String[] httpVersions, final String[] standardHeaders, final String[] materializedHeaders) {
+        final TransitionTable headers;
+        if (materializedHeaders == null) {
+            headers = createTransitionTable(standardHeaders, null);
+        } else {
+            final Set<String> all = new LinkedHashSet<String>(Arrays.asList(standardHeaders));
+            all.addAll(Arrays.asList(materializedHeaders));
+            headers = createTransitionTable(all.toArray(new String[all.size()]), new HashSet<String>(Arrays.asList(materializedHeaders)));
+        }
+        return new InterpretedTokenizer(createTransitionTable(httpVerbs, null), createTransitionTable(httpVersions, null), headers);
+    }
 
+    /**
+     * Creates a tokenizer that starts out interpreted, and switches to a generated tokenizer once it has handled
+     * {@link #DEFAULT_PROMOTION_THRESHOLD} requests. The tokenizer is generated on a background thread.
+     */
+    public static Tokenizer createTieredTokenizer(final String[] httpVerbs, final String[] httpVersions, final String[] standardHeaders) {
+        return createTieredTokenizer(httpVerbs, httpVersions, standardHeaders, null, DEFAULT_PROMOTION_THRESHOLD, BACKGROUND_THREAD);
+    }
 
-        c.branchEnd(http.get());
-        c.aload(0);
-        c.loadMethodParameters();
-        c.invokespecial(className, HANDLE_HTTP_VERSION, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class)});
-        c.dup();
-        c.istore(BYTES_REMAINING_VAR);
-        returnSet.add(c.ifeq());
+    /**
+     * @param materializedHeaders The only headers that are passed to the token handler, or null to pass on every header
+     * @param promotionThreshold  The number of requests to interpret before the generated tokenizer is created
+     * @param executor            The executor that generates the tokenizer
+     */
+    public static Tokenizer createTieredTokenizer(final String[] httpVerbs, final String[] httpVersions, final String[] standardHeaders, final String[] materializedHeaders, final int promotionThreshold, final Executor executor) {
+        return new TieredTokenizer(httpVerbs, httpVersions, standardHeaders, materializedHeaders, promotionThreshold, executor);
+    }
 
+    /**
+     * Creates a decoder for HTTP/2 header blocks, that produces the same output as a tokenizer created with the same
+     * verbs and standard headers.
+     */
+    public static HpackDecoder createHpackDecoder(final String[] httpVerbs, final String[] standardHeaders) {
+        final String className = HpackDecoder.class.getName() + "$$" + nameCounter.incrementAndGet();
+        final ClassFile file = new ClassFile(className, HpackDecoderParent.class.getName(), HpackDecoder.class.getName());
 
-        c.branchEnd(header.get());
-        CodeLocation headerStart = c.mark();
-        c.aload(0);
-        c.loadMethodParameters();
-        c.invokespecial(className, HANDLE_HEADER, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class)});
-        c.dup();
-        c.istore(BYTES_REMAINING_VAR);
-        returnSet.add(c.ifeq());
+        final ClassMethod ctor = file.addMethod(AccessFlag.PUBLIC, "<init>", "V");
+        ctor.getCodeAttribute().aload(0);
+        ctor.getCodeAttribute().invokespecial(HpackDecoderParent.class.getName(), "<init>", "()V");
+        ctor.getCodeAttribute().returnInstruction();
 
-        //it is possible that the header did not have a value
-        c.aload(TOKEN_STATE_VAR);
-        c.getfield(TokenState.class.getName(), "state", "I");
-        c.iconst(TokenState.PARSE_COMPLETE);
-        returnSet.add(c.ifIcmpeq());
+        final Map<String, String> verbs = new LinkedHashMap<String, String>();
+        for (final String verb : httpVerbs) {
+            verbs.put(verb, verb);
+        }
+        //HTTP/2 header names are always lower case
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (final String header : standardHeaders) {
+            headers.put(header.toLowerCase(Locale.ENGLISH), header);
+        }
+        for (final String header : HpackDecoderParent.PSEUDO_HEADERS) {
+            headers.put(header, header);
+        }
+        createMatcher(file, HpackDecoderParent.MATCH_VERB, verbs);
+        createMatcher(file, HpackDecoderParent.MATCH_HEADER, headers);
 
-        c.branchEnd(headerValue.get());
-        c.aload(0);
-        c.loadMethodParameters();
-        c.invokespecial(className, HANDLE_HEADER_VALUE, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class)});
-        c.dup();
-        c.istore(BYTES_REMAINING_VAR);
-        returnSet.add(c.ifeq());
+        @SuppressWarnings("unchecked")
+        final Class<HpackDecoder> cls = (Class<HpackDecoder>) file.define(TokenizerGenerator.class.getClassLoader());
+        Compiler.compileClass(cls);
+        try {
+            return cls.newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    /**
+     * Creates a method that matches a byte array against the keys of <code>values</code>, and returns the
+     * corresponding value or null if nothing matches. This is the same trie as the tokenizer uses, except that the
+     * whole token is already known.
+     */
+    private static void createMatcher(final ClassFile file, final String methodName, final Map<String, String> values) {
+        final State initial = new State((byte) 0, "");
+        final List<State> allStates = new ArrayList<State>();
+        for (String value : values.keySet()) {
+            addStates(initial, value, allStates);
+        }
+        final ClassMethod method = file.addMethod(0, methodName, DescriptorUtils.makeDescriptor(String.class), "[B", "I");
+        writeMatcherState(method.getCodeAttribute(), initial, values);
+    }
+
+    private static void writeMatcherState(final CodeAttribute c, final State state, final Map<String, String> values) {
+        final int depth = state.soFar.length();
+        c.iload(MATCHER_LENGTH_VAR);
+        c.iconst(depth);
+        final BranchEnd notEnd = c.ifIcmpne();
+        if (state.finalState) {
+            c.ldc(values.get(state.soFar));
+        } else {
+            c.aconstNull();
+        }
+        c.returnInstruction();
+        c.branchEnd(notEnd);
+
+        final String terminal = singleMatch(state);
+        if (state.next.isEmpty()) {
+            c.aconstNull();
+            c.returnInstruction();
+        } else if (terminal != null) {
+            //only one value can match from here, so just compare the rest of it
+            c.aload(MATCHER_BYTES_VAR);
+            c.iload(MATCHER_LENGTH_VAR);
+            c.iconst(depth);
+            c.ldc(terminal);
+            c.ldc(values.get(terminal));
+            c.invokestatic(HpackDecoderParent.class.getName(), "matchRemaining", "([BIILjava/lang/String;Ljava/lang/String;)Ljava/lang/String;");
+            c.returnInstruction();
+        } else {
+            c.aload(MATCHER_BYTES_VAR);
+            c.iconst(depth);
+            c.baload();
+            final Map<State, AtomicReference<BranchEnd>> ends = new IdentityHashMap<State, AtomicReference<BranchEnd>>();
+            if (state.next.size() == 1) {
+                final State next = state.next.values().iterator().next();
+                c.iconst(next.value);
+                ends.put(next, new AtomicReference<BranchEnd>(c.ifIcmpeq()));
+            } else {
+                final List<AtomicReference<BranchEnd>> holes = new ArrayList<AtomicReference<BranchEnd>>();
+                c.branchEnd(writeTransitionSwitch(c, state, ends, holes).get());
+                for (AtomicReference<BranchEnd> hole : holes) {
+                    c.branchEnd(hole.get());
+                }
+            }
+            c.aconstNull();
+            c.returnInstruction();
+            for (Map.Entry<State, AtomicReference<BranchEnd>> e : ends.entrySet()) {
+                c.branchEnd(e.getValue().get());
+                writeMatcherState(c, e.getKey(), values);
+            }
+        }
+    }
+
+    /**
+     * @return The only value that can be matched from this state, or null if there is more than one possibility
+     */
+    private static String singleMatch(final State state) {
+        if (state.next.size() != 1) {
+            return null;
+        }
+        State s = state.next.values().iterator().next();
+        while (!s.next.isEmpty()) {
+            if (s.finalState || s.next.size() != 1) {
+                return null;
+            }
+            s = s.next.values().iterator().next();
+        }
+        return s.soFar;
+    }
+
+    /**
+     * Flattens the trie for the given values into arrays, numbering the states breadth first
+     *
+     * @param wanted The values that are passed on if they are matched, or null for all of them
+     */
+    private static TransitionTable createTransitionTable(final String[] values, final Set<String> wanted) {
+        final State initial = new State((byte) 0, "");
+        final List<State> allStates = new ArrayList<State>();
+        for (String value : values) {
+            addStates(initial, value, allStates);
+        }
+        final List<State> states = new ArrayList<State>();
+        states.add(initial);
+        for (int i = 0; i < states.size(); ++i) {
+            states.get(i).stateno = i;
+            states.addAll(new TreeMap<Byte, State>(states.get(i).next).values());
+        }
+        final int[] offsets = new int[states.size() + 1];
+        final byte[] bytes = new byte[allStates.size()];
+        final int[] targets = new int[allStates.size()];
+        final String[] matches = new String[states.size()];
+        final String[] prefixes = new String[states.size()];
+        int transition = 0;
+        for (int i = 0; i < states.size(); ++i) {
+            final State state = states.get(i);
+            offsets[i] = transition;
+            for (final State next : state.next.values()) {
+                bytes[transition] = next.value;
+                targets[transition++] = next.stateno;
+            }
+            if (state.finalState && (wanted == null || wanted.contains(state.soFar))) {
+                //the generated code loads these with ldc, so we intern them to pass on the same instances
+                matches[i] = state.soFar.intern();
+            }
+            prefixes[i] = state.soFar;
+        }
+        offsets[states.size()] = transition;
+        return new TransitionTable(offsets, bytes, targets, matches, prefixes, wanted != null);
+    }
+
+    private static void createHandleBody(final String className, final ClassMethod handle) {
+        final CodeAttribute c = handle.getCodeAttribute();
+        //the generated code reads without checking the limit, so we check it once up front
+        c.aload(BYTE_BUFFER_VAR);
+        c.iload(BYTES_REMAINING_VAR);
+        c.invokestatic(BufferAccess.class.getName(), "checkBounds", "(Ljava/nio/ByteBuffer;I)V");
+
+        //each method returns once it runs out of bytes or has moved on to a different parse state, so we keep
+        //dispatching on the parse state until we run out of bytes or parsing is finished
+        final CodeLocation dispatch = c.mark();
         c.aload(TOKEN_STATE_VAR);
         c.getfield(TokenState.class.getName(), "state", "I");
-        c.iconst(TokenState.PARSE_COMPLETE);
-        returnSet.add(c.ifIcmpeq());
+        final TableSwitchBuilder builder = new TableSwitchBuilder(TokenState.VERB, TokenState.PARSE_STOPPED);
+        final Map<String, AtomicReference<BranchEnd>> methods = new LinkedHashMap<String, AtomicReference<BranchEnd>>();
+        methods.put(HANDLE_HTTP_VERB, builder.add());
+        methods.put(HANDLE_PATH, builder.add());
+        methods.put(HANDLE_HTTP_VERSION, builder.add());
+        methods.put(HANDLE_HEADER, builder.add());
+        methods.put(HANDLE_HEADER_VALUE, builder.add());
+        final AtomicReference<BranchEnd> complete = builder.add();
+        final AtomicReference<BranchEnd> stopped = builder.add();
+        c.tableswitch(builder);
 
-        c.gotoInstruction(headerStart);
+        for (final Map.Entry<String, AtomicReference<BranchEnd>> e : methods.entrySet()) {
+            c.branchEnd(e.getValue().get());
+            c.aload(0);
+            c.loadMethodParameters();
+            c.invokespecial(className, e.getKey(), "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(TokenHandler.class)});
+            c.dup();
+            c.istore(BYTES_REMAINING_VAR);
+            c.ifne(dispatch);
+            c.iconst(0);
+            c.returnInstruction();
+        }
 
         //all we need to do is return
-        for (final BranchEnd b : returnSet) {
-            c.branchEnd(b);
-        }
+        c.branchEnd(complete.get());
+        c.branchEnd(stopped.get());
         c.iload(BYTES_REMAINING_VAR);
         c.returnInstruction();
 
-        stateNotFound(c, builder);
+        stateNotFound(c, builder.getDefaultBranchEnd());
 
     }
 
-    private static void createStateMachine(final String[] httpVerbs, final String className, final ClassFile file, final ClassMethod sctor, final AtomicInteger fieldCounter, final String methodName, final CustomStateMachine stateMachine) {
+    private static TokenizerDiagnostics.StateMachine createStateMachine(final String[] httpVerbs, final String className, final ClassFile file, final ClassMethod sctor, final AtomicInteger fieldCounter, final String methodName, final int maxMethodSize, final CustomStateMachine stateMachine, final Map<String, State> tries) {
         //list of all states except the initial
         final List<State> allStates = new ArrayList<State>();
         final State initial = new State((byte) 0, "");
         for (String value : httpVerbs) {
             addStates(initial, value, allStates);
         }
+        collapseChains(initial, allStates);
         //we want initial to be number 0
         final AtomicInteger stateCounter = new AtomicInteger(-1);
         setupStateNo(initial, stateCounter, fieldCounter);
@@ -202,8 +481,161 @@ public class TokenizerGenerator {
 
         final int noStates = stateCounter.get();
 
-        final ClassMethod handle = file.addMethod(Modifier.PRIVATE, methodName, "I", DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class));
-        writeStateMachine(className, handle.getCodeAttribute(), initial, allStates, noStates, stateMachine);
+        final List<StateMachineMethod> methods = new ArrayList<StateMachineMethod>();
+        methods.add(new StateMachineMethod(methodName, initial));
+        splitMethod(methods.get(0), methods, initial, allStates, noStates, maxMethodSize, stateMachine);
+        assignMethods(initial, methods);
+        for (final StateMachineMethod method : methods) {
+            writeStateMachineMethod(className, file, method, initial, allStates, noStates, stateMachine);
+        }
+
+        final List<String> fields = new ArrayList<String>();
+        for (final State state : allStates) {
+            if (state.fieldName != null) {
+                fields.add(state.fieldName);
+            }
+        }
+        final List<String> methodNames = new ArrayList<String>();
+        for (final StateMachineMethod method : methods) {
+            methodNames.add(method.name);
+        }
+        tries.put(methodName, initial);
+        return new TokenizerDiagnostics.StateMachine(methodName, noStates + 1, fields.size(), fields, methodNames, null);
+    }
+
+    /**
+     * Writes the trie out as a graphviz DOT graph, for {@link TokenizerDiagnostics}
+     */
+    private static String createDot(final String name, final State initial) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("digraph ").append(name.replace('$', '_')).append(" {\n");
+        final Map<State, String> ids = new IdentityHashMap<State, String>();
+        final List<State> states = new ArrayList<State>();
+        states.add(initial);
+        for (int i = 0; i < states.size(); ++i) {
+            final State state = states.get(i);
+            final String id = "s" + i;
+            ids.put(state, id);
+            sb.append("  ").append(id).append(" [");
+            if (state.stateno < 0) {
+                sb.append("shape=box, label=\"").append(escapeDot(state.terminalState)).append('"');
+            } else {
+                sb.append("shape=").append(state.finalState ? "doublecircle" : "circle").append(", label=\"").append(state.stateno).append('"');
+            }
+            sb.append("];\n");
+            states.addAll(new TreeMap<Byte, State>(state.next).values());
+        }
+        for (final State state : states) {
+            for (final State next : new TreeMap<Byte, State>(state.next).values()) {
+                sb.append("  ").append(ids.get(state)).append(" -> ").append(ids.get(next))
+                        .append(" [label=\"").append(escapeDot(String.valueOf((char) (next.value & 0xFF)))).append("\"];\n");
+            }
+        }
+        return sb.append("}\n").toString();
+    }
+
+    private static String escapeDot(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void writeStateMachineMethod(final String className, final ClassFile file, final StateMachineMethod method, final State initial, final List<State> allStates, final int noStates, final CustomStateMachine stateMachine) {
+        //the states remember where their code was last written, which is not valid for this method
+        initial.clearCode();
+        for (final State state : allStates) {
+            state.clearCode();
+        }
+        final ClassMethod handle = file.addMethod(Modifier.PRIVATE, method.name, "I", DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(TokenHandler.class));
+        writeStateMachine(className, handle.getCodeAttribute(), method, initial, allStates, noStates, stateMachine);
+    }
+
+    /**
+     * Makes sure that the code generated for the given method is no larger than <code>maxMethodSize</code>, as
+     * HotSpot will never compile a method that is over <code>HugeMethodLimit</code>.
+     * <p/>
+     * If the method is too large then the states that directly follow its entry states are moved into new
+     * methods, largest first, until it fits. These are packed into as few new methods as possible, and any new
+     * method that is still too large is split again in the same way.
+     */
+    private static void splitMethod(final StateMachineMethod method, final List<StateMachineMethod> methods, final State initial, final List<State> allStates, final int noStates, final int maxMethodSize, final CustomStateMachine stateMachine) {
+        if (measureMethod(method, methods, initial, allStates, noStates, stateMachine) <= maxMethodSize) {
+            return;
+        }
+        final List<State> candidates = new ArrayList<State>();
+        final Map<State, Integer> sizes = new IdentityHashMap<State, Integer>();
+        for (final State entry : method.entryStates) {
+            for (final State next : entry.next.values()) {
+                //prefix match states are handled by whichever method reaches them, so they cannot be moved
+                if (next.stateno >= 0) {
+                    candidates.add(next);
+                    final StateMachineMethod trial = new StateMachineMethod(method.name + "$trial", next);
+                    methods.add(trial);
+                    sizes.put(next, measureMethod(trial, methods, initial, allStates, noStates, stateMachine));
+                    methods.remove(trial);
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<State>() {
+            @Override
+            public int compare(final State o1, final State o2) {
+                return sizes.get(o2).compareTo(sizes.get(o1));
+            }
+        });
+
+        final List<StateMachineMethod> created = new ArrayList<StateMachineMethod>();
+        for (final State candidate : candidates) {
+            if (measureMethod(method, methods, initial, allStates, noStates, stateMachine) <= maxMethodSize) {
+                break;
+            }
+            StateMachineMethod target = null;
+            for (final StateMachineMethod existing : created) {
+                existing.entryStates.add(candidate);
+                if (measureMethod(existing, methods, initial, allStates, noStates, stateMachine) <= maxMethodSize) {
+                    target = existing;
+                    break;
+                }
+                existing.entryStates.remove(candidate);
+            }
+            if (target == null) {
+                target = new StateMachineMethod(methods.get(0).name + "$" + methods.size(), candidate);
+                created.add(target);
+                methods.add(target);
+            }
+        }
+        for (final StateMachineMethod newMethod : created) {
+            splitMethod(newMethod, methods, initial, allStates, noStates, maxMethodSize, stateMachine);
+        }
+    }
+
+    /**
+     * Generates the given method into a scratch class, and returns the size of its bytecode
+     */
+    private static int measureMethod(final StateMachineMethod method, final List<StateMachineMethod> methods, final State initial, final List<State> allStates, final int noStates, final CustomStateMachine stateMachine) {
+        assignMethods(initial, methods);
+        final ClassFile scratch = new ClassFile(SCRATCH_CLASS_NAME, TokenizerParent.class.getName(), Tokenizer.class.getName());
+        writeStateMachineMethod(scratch.getName(), scratch, method, initial, allStates, noStates, stateMachine);
+        return BytecodeSizes.read(scratch.toBytecode()).get(method.name);
+    }
+
+    /**
+     * Works out which method each state is generated in. Every state belongs to the same method as its parent,
+     * unless it is the entry state of another method.
+     */
+    private static void assignMethods(final State initial, final List<StateMachineMethod> methods) {
+        final Map<State, StateMachineMethod> entries = new IdentityHashMap<State, StateMachineMethod>();
+        for (final StateMachineMethod method : methods) {
+            for (final State entry : method.entryStates) {
+                entries.put(entry, method);
+            }
+        }
+        assignMethod(initial, methods.get(0), entries);
+    }
+
+    private static void assignMethod(final State state, final StateMachineMethod parent, final Map<State, StateMachineMethod> entries) {
+        final StateMachineMethod method = entries.containsKey(state) ? entries.get(state) : parent;
+        state.method = method;
+        for (final State next : state.next.values()) {
+            assignMethod(next, method, entries);
+        }
     }
 
     private static void createStateField(final State state, final ClassFile file, final CodeAttribute sc) {
@@ -218,35 +650,41 @@ public class TokenizerGenerator {
 
 
     private static void setupStateNo(final State state, final AtomicInteger stateCounter, final AtomicInteger fieldCounter) {
-        if (state.next.isEmpty()) {
+        if (state.terminalState != null) {
             state.stateno = TokenState.PREFIX_MATCH;
-            state.terminalState = state.soFar;
             state.fieldName = "STATE_BYTES_" + fieldCounter.incrementAndGet();
-        } else if (state.next.size() == 1) {
-            String terminal = null;
-            State s = state.next.values().iterator().next();
-            while (true) {
-                if (s.next.size() > 1) {
-                    break;
-                } else if (s.next.isEmpty()) {
-                    terminal = s.soFar;
-                    break;
-                }
-                s = s.next.values().iterator().next();
-            }
-            if (terminal != null) {
-                state.stateno = TokenState.PREFIX_MATCH;
-                state.terminalState = terminal;
-                state.fieldName = "STATE_BYTES_" + fieldCounter.incrementAndGet();
-            } else {
-                state.stateno = stateCounter.incrementAndGet();
-            }
         } else {
             state.stateno = stateCounter.incrementAndGet();
         }
     }
 
-    private static void writeStateMachine(final String className, final CodeAttribute c, final State initial, final List<State> allStates, int noStates, final CustomStateMachine stateMachine) {
+    /**
+     * Replaces every part of the trie that can only lead to a single value with a single prefix match state, so
+     * no code or fields are generated for the states that the prefix match skips over.
+     * <p/>
+     * A chain that passes through a final state cannot be collapsed, as the token may end there.
+     */
+    private static void collapseChains(final State initial, final List<State> allStates) {
+        final Set<State> remaining = Collections.newSetFromMap(new IdentityHashMap<State, Boolean>());
+        collapseChains(initial, remaining);
+        allStates.retainAll(remaining);
+    }
+
+    private static void collapseChains(final State state, final Set<State> remaining) {
+        for (final State next : state.next.values()) {
+            remaining.add(next);
+            if (next.next.isEmpty()) {
+                next.terminalState = next.soFar;
+            } else if (!next.finalState && singleMatch(next) != null) {
+                next.terminalState = singleMatch(next);
+                next.next.clear();
+            } else {
+                collapseChains(next, remaining);
+            }
+        }
+    }
+
+    private static void writeStateMachine(final String className, final CodeAttribute c, final StateMachineMethod method, final State initial, final List<State> allStates, int noStates, final CustomStateMachine stateMachine) {
 
         final List<State> states = new ArrayList<State>();
         states.add(initial);
@@ -258,7 +696,6 @@ public class TokenizerGenerator {
         c.dup();
         c.dup();
         c.dup();
-        c.dup();
         c.getfield(TokenState.class.getName(), "parseState", "I");
         c.istore(CURRENT_STATE_VAR);
         c.getfield(TokenState.class.getName(), "pos", "I");
@@ -267,8 +704,6 @@ public class TokenizerGenerator {
         c.astore(STATE_CURRENT_VAR);
         c.getfield(TokenState.class.getName(), "currentBytes", "[B");
         c.astore(STATE_CURRENT_BYTES_VAR);
-        c.getfield(TokenState.class.getName(), "stringBuilder", DescriptorUtils.makeDescriptor(StringBuilder.class));
-        c.astore(STATE_STRING_BUILDER_VAR);
 
 
         c.iload(BYTES_REMAINING_VAR);
@@ -279,52 +714,83 @@ public class TokenizerGenerator {
 
         c.branchEnd(nonZero);
 
+        //work out where the buffer contents actually live, so we can read them directly
+        c.aload(BYTE_BUFFER_VAR);
+        c.invokestatic(BufferAccess.class.getName(), "base", "(Ljava/nio/ByteBuffer;)Ljava/lang/Object;");
+        c.astore(BUFFER_BASE_VAR);
+        c.aload(BYTE_BUFFER_VAR);
+        c.invokevirtual(Buffer.class.getName(), "position", "()I");
+        c.istore(BUFFER_INDEX_VAR);
+        c.aload(BYTE_BUFFER_VAR);
+        c.invokestatic(BufferAccess.class.getName(), "address", "(Ljava/nio/ByteBuffer;)J");
+        c.lstore(BUFFER_ADDRESS_VAR);
+
         //load the current state
         c.iload(CURRENT_STATE_VAR);
         //switch on the current state
-        TableSwitchBuilder builder = new TableSwitchBuilder(-BYTES_REMAINING_VAR, noStates);
         final IdentityHashMap<State, AtomicReference<BranchEnd>> ends = new IdentityHashMap<State, AtomicReference<BranchEnd>>();
-        final AtomicReference<BranchEnd> prefixMatch = builder.add();
-        final AtomicReference<BranchEnd> noState = builder.add();
+        final Map<StateMachineMethod, List<AtomicReference<BranchEnd>>> otherMethods = new LinkedHashMap<StateMachineMethod, List<AtomicReference<BranchEnd>>>();
+        final AtomicReference<BranchEnd> prefixMatchSkip;
+        final AtomicReference<BranchEnd> prefixMatch;
+        final AtomicReference<BranchEnd> noState;
+        if (method.isMain()) {
+            //the main method is where parsing resumes, so it has to handle every state
+            final TableSwitchBuilder builder = new TableSwitchBuilder(TokenState.PREFIX_MATCH_SKIP, noStates);
+            prefixMatchSkip = builder.add();
+            prefixMatch = builder.add();
+            noState = builder.add();
+            for (final State s : states) {
+                if (s.stateno >= 0) {
+                    if (s.method == method) {
+                        ends.put(s, builder.add());
+                    } else {
+                        if (!otherMethods.containsKey(s.method)) {
+                            otherMethods.put(s.method, new ArrayList<AtomicReference<BranchEnd>>());
+                        }
+                        otherMethods.get(s.method).add(builder.add());
+                    }
+                }
+            }
+            c.tableswitch(builder);
+            stateNotFound(c, builder.getDefaultBranchEnd());
+        } else {
+            //other methods are only ever entered at one of their own states
+            prefixMatchSkip = null;
+            prefixMatch = null;
+            noState = null;
+            final LookupSwitchBuilder builder = new LookupSwitchBuilder();
+            for (final State s : states) {
+                if (s.stateno >= 0 && s.method == method) {
+                    ends.put(s, builder.add(s.stateno));
+                }
+            }
+            c.lookupswitch(builder);
+            stateNotFound(c, builder.getDefaultBranchEnd());
+        }
 
-        ends.put(initial, builder.add());
-        for (final State s : states) {
-            if (s.stateno > 0) {
-                ends.put(s, builder.add());
+        //states that are generated in a different method, so we just pass the call on
+        for (final Map.Entry<StateMachineMethod, List<AtomicReference<BranchEnd>>> e : otherMethods.entrySet()) {
+            for (final AtomicReference<BranchEnd> end : e.getValue()) {
+                c.branchEnd(end.get());
             }
+            invokeStateMachineMethod(c, className, e.getKey());
+            c.returnInstruction();
         }
-        c.tableswitch(builder);
-        stateNotFound(c, builder);
 
         //return code
         //code that synchronizes the state object and returns
         setupLocalVariables(c);
         final CodeLocation returnIncompleteCode = c.mark();
-        c.aload(TOKEN_STATE_VAR);
-        c.dup();
-        c.dup();
-        c.dup();
-        c.dup();
-
-        c.iload(STATE_POS_VAR);
-        c.putfield(TokenState.class.getName(), "pos", "I");
-        c.aload(STATE_CURRENT_VAR);
-        c.putfield(TokenState.class.getName(), "current", DescriptorUtils.makeDescriptor(String.class));
-        c.aload(STATE_CURRENT_BYTES_VAR);
-        c.putfield(TokenState.class.getName(), "currentBytes", "[B");
-        c.aload(STATE_STRING_BUILDER_VAR);
-        c.putfield(TokenState.class.getName(), "stringBuilder", DescriptorUtils.makeDescriptor(StringBuilder.class));
-        c.iload(CURRENT_STATE_VAR);
-        c.putfield(TokenState.class.getName(), "parseState", "I");
+        writeBackState(c);
         c.iload(BYTES_REMAINING_VAR);
         c.returnInstruction();
         setupLocalVariables(c);
         final CodeLocation returnCompleteCode = c.mark();
+        updateBufferPosition(c);
         c.aload(TOKEN_STATE_VAR);
         c.dup();
         c.dup();
         c.dup();
-        c.dup();
 
         c.iconst(0);
         c.putfield(TokenState.class.getName(), "pos", "I");
@@ -332,41 +798,68 @@ public class TokenizerGenerator {
         c.putfield(TokenState.class.getName(), "current", DescriptorUtils.makeDescriptor(String.class));
         c.aconstNull();
         c.putfield(TokenState.class.getName(), "currentBytes", "[B");
-        c.aconstNull();
-        c.putfield(TokenState.class.getName(), "stringBuilder", DescriptorUtils.makeDescriptor(StringBuilder.class));
         c.iconst(0);
         c.putfield(TokenState.class.getName(), "parseState", "I");
         c.iload(BYTES_REMAINING_VAR);
         c.returnInstruction();
+        setupLocalVariables(c);
+        final CodeLocation returnStoppedCode = c.mark();
+        c.aload(TOKEN_STATE_VAR);
+        c.iconst(TokenState.PARSE_STOPPED);
+        c.putfield(TokenState.class.getName(), "state", "I");
+        c.gotoInstruction(returnCompleteCode);
+
+        //code that transfers control to the method that generates the next state
+        final Map<StateMachineMethod, CodeLocation> delegates = new IdentityHashMap<StateMachineMethod, CodeLocation>();
+        for (final State s : states) {
+            if (s.stateno >= 0 && s.method == method) {
+                for (final State next : s.next.values()) {
+                    if (next.stateno >= 0 && next.method != method && !delegates.containsKey(next.method)) {
+                        setupLocalVariables(c);
+                        delegates.put(next.method, c.mark());
+                        writeBackState(c);
+                        invokeStateMachineMethod(c, className, next.method);
+                        c.returnInstruction();
+                    }
+                }
+            }
+        }
 
         //prefix
-        c.branchEnd(prefixMatch.get());
+        if (prefixMatch != null) {
+            c.branchEnd(prefixMatchSkip.get());
+            c.branchEnd(prefixMatch.get());
+        } else {
+            setupLocalVariables(c);
+        }
+        final CodeLocation prefixStart = c.mark();
 
-        final CodeLocation prefixLoop = c.mark(); //loop for when we are prefix matching
-        handleReturnIfNoMoreBytes(c, returnIncompleteCode);
-        //load 3 copies of the current byte into the stack
-        c.aload(BYTE_BUFFER_VAR);
-        c.invokevirtual(ByteBuffer.class.getName(), "get", "()B");
+        //skip over as much of the prefix as we can 8 bytes at a time
+        //a word that matches cannot contain a delimiter, as the prefix itself never contains one
+        c.aload(BUFFER_BASE_VAR);
+        c.lload(BUFFER_ADDRESS_VAR);
+        c.iload(BUFFER_INDEX_VAR);
+        c.aload(STATE_CURRENT_BYTES_VAR);
+        c.iload(STATE_POS_VAR);
+        c.iload(BYTES_REMAINING_VAR);
+        c.invokestatic(BufferAccess.class.getName(), "matchWords", "(Ljava/lang/Object;JI[BII)I");
         c.dup();
         c.dup();
+        c.iload(STATE_POS_VAR);
+        c.iadd();
+        c.istore(STATE_POS_VAR);
+        c.iload(BUFFER_INDEX_VAR);
+        c.iadd();
+        c.istore(BUFFER_INDEX_VAR);
+        c.iload(BYTES_REMAINING_VAR);
+        c.swap();
+        c.isub();
+        c.istore(BYTES_REMAINING_VAR);
+
+        final CodeLocation prefixLoop = c.mark(); //loop for when we are prefix matching
+        handleReturnIfNoMoreBytes(c, returnIncompleteCode);
+        readByte(c);
         c.iinc(BYTES_REMAINING_VAR, -1);
-        final Set<BranchEnd> prefixHandleSpace = new HashSet<>();
-        if(stateMachine.isHeader()) {
-            c.iconst(':');
-            prefixHandleSpace.add(c.ifIcmpeq());
-            c.dup();
-        }
-        c.iconst(' ');
-        prefixHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\t');
-        prefixHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\r');
-        prefixHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\n');
-        prefixHandleSpace.add(c.ifIcmpeq());
 
         //check if we have overrun
         c.aload(STATE_CURRENT_BYTES_VAR);
@@ -374,149 +867,189 @@ public class TokenizerGenerator {
         c.iload(STATE_POS_VAR);
         BranchEnd overrun = c.ifIcmpeq();
         //so we have not overrun
-        //now check if the character matches
+        //now check if the character matches, the prefix never contains a delimiter so this is checked first
+        c.dup();
         c.aload(STATE_CURRENT_BYTES_VAR);
         c.iload(STATE_POS_VAR);
         c.baload();
-        c.isub();
-        c.iconst(0); //just to make the stacks match
-        c.swap();
-        BranchEnd noMatch = c.ifne();
+        BranchEnd noMatch = c.ifIcmpne();
 
         //so they match
-        c.pop2(); //pop our extra bytes off the stack, we do not need it
+        c.pop();
         c.iinc(STATE_POS_VAR, 1);
-        handleReturnIfNoMoreBytes(c, returnIncompleteCode);
         c.gotoInstruction(prefixLoop);
 
         c.branchEnd(overrun); //overrun and not match use the same code path
         c.branchEnd(noMatch); //the current character did not match
+        final BranchEnd prefixHandleSpace = ifDelimiter(c, stateMachine);
+        //the trie states jump here when they do not match, with their token so far in current and pos
+        final CodeLocation noMatchStart = c.mark();
         c.iconst(TokenState.NO_STATE);
         c.istore(CURRENT_STATE_VAR);
 
-        //create the string builder
-        c.newInstruction(StringBuilder.class);
-        c.dup();
-        c.aload(STATE_CURRENT_VAR);
-        c.iconst(0);
-        c.iload(STATE_POS_VAR);
-        c.invokevirtual(String.class.getName(), "substring", "(II)Ljava/lang/String;");
-        c.invokespecial(StringBuilder.class.getName(), "<init>", "(Ljava/lang/String;)V");
-        c.swap();
-        c.invokevirtual(StringBuilder.class.getName(), "append", "(C)Ljava/lang/StringBuilder;");
-        c.astore(STATE_STRING_BUILDER_VAR);
-        c.pop();
+        if (stateMachine.isSelective()) {
+            //we don't want other tokens, so there is no point keeping track of them
+            c.pop();
+        } else {
+            //copy what we have matched so far into the token scratch area, followed by the current byte
+            c.aload(TOKEN_STATE_VAR);
+            c.aload(STATE_CURRENT_VAR);
+            c.iload(STATE_POS_VAR);
+            c.invokevirtual(TokenState.class.getName(), "startToken", "(Ljava/lang/String;I)V");
+            c.aload(TOKEN_STATE_VAR);
+            c.swap();
+            c.invokevirtual(TokenState.class.getName(), "append", "(B)V");
+        }
         BranchEnd prefixToNoState = c.gotoInstruction();
 
         //handle the space case
-        for (BranchEnd b : prefixHandleSpace) {
-            c.branchEnd(b);
-        }
-
-        //new state will be 0
-        c.iconst(0);
-        c.istore(CURRENT_STATE_VAR);
+        c.branchEnd(prefixHandleSpace);
+        c.pop();
 
         c.aload(STATE_CURRENT_BYTES_VAR);
         c.arraylength();
         c.iload(STATE_POS_VAR);
         BranchEnd correctLength = c.ifIcmpeq();
 
-        c.aload(STATE_CURRENT_VAR);
-        c.iconst(0);
-        c.iload(STATE_POS_VAR);
-        c.invokevirtual(String.class.getName(), "substring", "(II)Ljava/lang/String;");
+        if (!stateMachine.isSelective()) {
+            c.aload(STATE_CURRENT_VAR);
+            c.iconst(0);
+            c.iload(STATE_POS_VAR);
+            c.invokevirtual(String.class.getName(), "substring", "(II)Ljava/lang/String;");
+            c.astore(STATE_CURRENT_VAR);
+        }
+        //the trie states jump here when a token that is not one of our values ends, with the token in current
+        final CodeLocation otherTokenStart = c.mark();
+        if (stateMachine.isSelective()) {
+            c.aconstNull();
+        } else {
+            c.aload(STATE_CURRENT_VAR);
+        }
         stateMachine.handleOtherToken(c);
-        //TODO: exit if it returns null
-        //decrease the available bytes
-        c.pop2();
-        tokenDone(c, returnCompleteCode, stateMachine);
+        tokenDone(c, returnCompleteCode, returnStoppedCode, stateMachine);
 
         c.branchEnd(correctLength);
 
+        if (stateMachine.isSelective()) {
+            //we matched a token that we don't want
+            c.iload(CURRENT_STATE_VAR);
+            c.iconst(TokenState.PREFIX_MATCH_SKIP);
+            final BranchEnd notSkipped = c.ifIcmpne();
+            c.iconst(0);
+            tokenDone(c, returnCompleteCode, returnStoppedCode, stateMachine);
+            c.branchEnd(notSkipped);
+        }
+        //the trie states jump here when one of our values ends, with the value in current
+        final CodeLocation matchedTokenStart = c.mark();
         c.aload(STATE_CURRENT_VAR);
         stateMachine.handleStateMachineMatchedToken(c);
-        //TODO: exit if it returns null
-        c.pop2();
-        tokenDone(c, returnCompleteCode, stateMachine);
+        tokenDone(c, returnCompleteCode, returnStoppedCode, stateMachine);
 
 
         //nostate
-        c.branchEnd(noState.get());
+        if (noState != null) {
+            c.branchEnd(noState.get());
+        }
         c.branchEnd(prefixToNoState);
         CodeLocation noStateLoop = c.mark();
+        handleReturnIfNoMoreBytes(c, returnIncompleteCode);
 
-        //load 2 copies of the current byte into the stack
-        c.aload(BYTE_BUFFER_VAR);
-        c.invokevirtual(ByteBuffer.class.getName(), "get", "()B");
-        c.dup();
+        readByte(c);
         c.iinc(BYTES_REMAINING_VAR, -1);
 
-        final Set<BranchEnd> nostateHandleSpace = new HashSet<>();
-        if(stateMachine.isHeader()) {
-            c.iconst(':');
-            nostateHandleSpace.add(c.ifIcmpeq());
-            c.dup();
+        final BranchEnd nostateHandleSpace = ifDelimiter(c, stateMachine);
+        if (stateMachine.isSelective()) {
+            c.pop();
+        } else {
+            c.aload(TOKEN_STATE_VAR);
+            c.swap();
+            c.invokevirtual(TokenState.class.getName(), "append", "(B)V");
         }
-        c.iconst(' ');
-        nostateHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\t');
-        nostateHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\r');
-        nostateHandleSpace.add(c.ifIcmpeq());
-        c.dup();
-        c.iconst('\n');
-        nostateHandleSpace.add(c.ifIcmpeq());
-        c.aload(STATE_STRING_BUILDER_VAR);
-        c.swap();
-        c.invokevirtual(StringBuilder.class.getName(), "append", "(C)Ljava/lang/StringBuilder;");
+        c.gotoInstruction(noStateLoop);
+        c.branchEnd(nostateHandleSpace);
         c.pop();
-        c.iload(BYTES_REMAINING_VAR);
-        c.ifne(noStateLoop); //go back to the start if we have not run out of bytes
-
-        //we have run out of bytes, so we need to write back the current state
-        c.aload(TOKEN_STATE_VAR);
-        c.dup();
-        c.aload(STATE_STRING_BUILDER_VAR);
-        c.putfield(TokenState.class.getName(), "stringBuilder", DescriptorUtils.makeDescriptor(StringBuilder.class));
-        c.iload(CURRENT_STATE_VAR);
-        c.putfield(TokenState.class.getName(), "parseState", "I");
-        c.iconst(0);
-        c.returnInstruction();
-        for (BranchEnd b : nostateHandleSpace) {
-            c.branchEnd(b);
+        if (stateMachine.isSelective()) {
+            c.aconstNull();
+        } else {
+            c.aload(TOKEN_STATE_VAR);
+            c.invokevirtual(TokenState.class.getName(), "tokenString", "()Ljava/lang/String;");
         }
-        c.aload(STATE_STRING_BUILDER_VAR);
-        c.invokevirtual(StringBuilder.class.getName(), "toString", "()Ljava/lang/String;");
-        c.aconstNull();
-        c.astore(STATE_STRING_BUILDER_VAR);
         stateMachine.handleOtherToken(c);
-        //TODO: exit if it returns null
-        c.pop();
-        tokenDone(c, returnCompleteCode, stateMachine);
+        tokenDone(c, returnCompleteCode, returnStoppedCode, stateMachine);
 
 
-        invokeState(className, c, ends.get(initial).get(), initial, initial, noStateLoop, prefixLoop, returnIncompleteCode, returnCompleteCode, stateMachine);
+        if (initial.method == method) {
+            invokeState(className, c, method, delegates, ends.get(initial).get(), initial, initial, prefixStart, noMatchStart, otherTokenStart, matchedTokenStart, returnIncompleteCode, returnCompleteCode, returnStoppedCode, stateMachine);
+        }
         for (final State s : allStates) {
-            if (s.stateno >= 0) {
-                invokeState(className, c, ends.get(s).get(), s, initial, noStateLoop, prefixLoop, returnIncompleteCode, returnCompleteCode, stateMachine);
+            if (s.stateno >= 0 && s.method == method) {
+                invokeState(className, c, method, delegates, ends.get(s).get(), s, initial, prefixStart, noMatchStart, otherTokenStart, matchedTokenStart, returnIncompleteCode, returnCompleteCode, returnStoppedCode, stateMachine);
             }
         }
     }
 
+    /**
+     * Writes the local copies of the state back to the token state object, and updates the buffer position
+     */
+    private static void writeBackState(final CodeAttribute c) {
+        updateBufferPosition(c);
+        c.aload(TOKEN_STATE_VAR);
+        c.dup();
+        c.dup();
+        c.dup();
+
+        c.iload(STATE_POS_VAR);
+        c.putfield(TokenState.class.getName(), "pos", "I");
+        c.aload(STATE_CURRENT_VAR);
+        c.putfield(TokenState.class.getName(), "current", DescriptorUtils.makeDescriptor(String.class));
+        c.aload(STATE_CURRENT_BYTES_VAR);
+        c.putfield(TokenState.class.getName(), "currentBytes", "[B");
+        c.iload(CURRENT_STATE_VAR);
+        c.putfield(TokenState.class.getName(), "parseState", "I");
+    }
+
+    private static void invokeStateMachineMethod(final CodeAttribute c, final String className, final StateMachineMethod method) {
+        c.aload(0);
+        c.loadMethodParameters();
+        c.invokespecial(className, method.name, "I", new String[]{DescriptorUtils.makeDescriptor(ByteBuffer.class), "I", DescriptorUtils.makeDescriptor(TokenState.class), DescriptorUtils.makeDescriptor(TokenHandler.class)});
+    }
+
     private static void setupLocalVariables(final CodeAttribute c) {
         c.setupFrame(DescriptorUtils.makeDescriptor("fakeclass"),
                 "[B",
                 "I",
                 DescriptorUtils.makeDescriptor(TokenState.class),
-                DescriptorUtils.makeDescriptor(HttpExchangeBuilder.class),
+                DescriptorUtils.makeDescriptor(TokenHandler.class),
                 "I",
                 "I",
                 DescriptorUtils.makeDescriptor(String.class),
-                DescriptorUtils.makeDescriptor(StringBuilder.class),
-                "[B");
+                "[B",
+                DescriptorUtils.makeDescriptor(Object.class),
+                "I",
+                "J");
+    }
+
+    /**
+     * Reads the next byte from the buffer and leaves it on the stack. This does not check the limit, the
+     * caller must have already checked that bytes remain.
+     */
+    private static void readByte(final CodeAttribute c) {
+        c.aload(BYTE_BUFFER_VAR);
+        c.aload(BUFFER_BASE_VAR);
+        c.lload(BUFFER_ADDRESS_VAR);
+        c.iload(BUFFER_INDEX_VAR);
+        c.invokestatic(BufferAccess.class.getName(), "getByte", "(Ljava/nio/ByteBuffer;Ljava/lang/Object;JI)B");
+        c.iinc(BUFFER_INDEX_VAR, 1);
+    }
+
+    /**
+     * As we read using absolute indexes the buffer position must be updated before we return
+     */
+    private static void updateBufferPosition(final CodeAttribute c) {
+        c.aload(BYTE_BUFFER_VAR);
+        c.iload(BUFFER_INDEX_VAR);
+        c.invokevirtual(Buffer.class.getName(), "position", "(I)Ljava/nio/Buffer;");
+        c.pop();
     }
 
     private static void handleReturnIfNoMoreBytes(final CodeAttribute c, final CodeLocation returnCode) {
@@ -524,12 +1057,17 @@ public class TokenizerGenerator {
         c.ifEq(returnCode); //go back to the start if we have not run out of bytes
     }
 
-    private static void tokenDone(final CodeAttribute c, final CodeLocation returnCode, final CustomStateMachine stateMachine) {
+    /**
+     * Moves on to the next parse state once the token has been passed to the handler, unless the handler
+     * (whose return value is on the top of the stack) asked us to stop
+     */
+    private static void tokenDone(final CodeAttribute c, final CodeLocation returnCode, final CodeLocation returnStoppedCode, final CustomStateMachine stateMachine) {
+        c.ifne(returnStoppedCode);
         stateMachine.updateParseState(c);
         c.gotoInstruction(returnCode);
     }
 
-    private static void invokeState(final String className, final CodeAttribute c, BranchEnd methodState, final State currentState, final State initialState, final CodeLocation noStateStart, final CodeLocation prefixStart, final CodeLocation returnIncompleteCode, final CodeLocation returnCompleteCode, final CustomStateMachine stateMachine) {
+    private static void invokeState(final String className, final CodeAttribute c, final StateMachineMethod method, final Map<StateMachineMethod, CodeLocation> delegates, BranchEnd methodState, final State currentState, final State initialState, final CodeLocation prefixStart, final CodeLocation noMatchStart, final CodeLocation otherTokenStart, final CodeLocation matchedTokenStart, final CodeLocation returnIncompleteCode, final CodeLocation returnCompleteCode, final CodeLocation returnStoppedCode, final CustomStateMachine stateMachine) {
         c.branchEnd(methodState);
         currentState.mark(c);
 
@@ -542,8 +1080,7 @@ public class TokenizerGenerator {
             final BranchEnd end = c.ifne();
             c.pop();
             //load 2 copies of the current byte into the stack
-            c.aload(BYTE_BUFFER_VAR);
-            c.invokevirtual(ByteBuffer.class.getName(), "get", "()B");
+            readByte(c);
             c.iinc(BYTES_REMAINING_VAR, -1);
             BranchEnd cont = c.gotoInstruction();
             c.branchEnd(end);
@@ -554,83 +1091,52 @@ public class TokenizerGenerator {
 
         } else {
             //load 2 copies of the current byte into the stack
-            c.aload(BYTE_BUFFER_VAR);
-            c.invokevirtual(ByteBuffer.class.getName(), "get", "()B");
+            readByte(c);
             c.iinc(BYTES_REMAINING_VAR, -1);
         }
 
 
-        c.dup();
-        final Set<AtomicReference<BranchEnd>> tokenEnds = new HashSet<>();
         final Map<State, AtomicReference<BranchEnd>> ends = new IdentityHashMap<State, AtomicReference<BranchEnd>>();
-        if (currentState.next.size() > 6) {
-            final LookupSwitchBuilder s = new LookupSwitchBuilder();
-            if(stateMachine.isHeader()) {
-                tokenEnds.add(s.add((byte)':'));
-            }
-            tokenEnds.add(s.add((byte) ' '));
-            tokenEnds.add(s.add((byte) '\t'));
-            tokenEnds.add(s.add((byte) '\r'));
-            tokenEnds.add(s.add((byte) '\n'));
-            for (final State state : currentState.next.values()) {
-                ends.put(state, s.add(state.value));
-            }
-            c.lookupswitch(s);
-            final BranchEnd defaultSetup = s.getDefaultBranchEnd().get();
-            c.branchEnd(defaultSetup);
-        } else {
-            for (State state : currentState.next.values()) {
-                c.iconst(state.value);
-                ends.put(state, new AtomicReference<BranchEnd>(c.ifIcmpeq()));
-                c.dup();
-            }
-            if(stateMachine.isHeader()) {
-                c.iconst(':');
-                tokenEnds.add(new AtomicReference<>(c.ifIcmpeq()));
-                c.dup();
-            }
-            c.iconst(' ');
-            tokenEnds.add(new AtomicReference<>(c.ifIcmpeq()));
-            c.dup();
-            c.iconst('\t');
-            tokenEnds.add(new AtomicReference<>(c.ifIcmpeq()));
+        //first look for a transition to another state, if there are none then we check the
+        //byte class table to see if this is the end of the token
+        if (currentState.next.size() == 1) {
+            final State state = currentState.next.values().iterator().next();
             c.dup();
-            c.iconst('\r');
-            tokenEnds.add(new AtomicReference<>(c.ifIcmpeq()));
+            c.iconst(state.value);
+            ends.put(state, new AtomicReference<BranchEnd>(c.ifIcmpeq()));
+        } else if (!currentState.next.isEmpty()) {
             c.dup();
-            c.iconst('\n');
-            tokenEnds.add(new AtomicReference<>(c.ifIcmpeq()));
-
+            final List<AtomicReference<BranchEnd>> holes = new ArrayList<AtomicReference<BranchEnd>>();
+            final AtomicReference<BranchEnd> defaultEnd = writeTransitionSwitch(c, currentState, ends, holes);
+            c.branchEnd(defaultEnd.get());
+            for (AtomicReference<BranchEnd> hole : holes) {
+                c.branchEnd(hole.get());
+            }
         }
+        final BranchEnd tokenEnd = ifDelimiter(c, stateMachine);
 
-
-        c.iconst(TokenState.NO_STATE);
-        c.istore(CURRENT_STATE_VAR);
-
-        //create the string builder
-        c.newInstruction(StringBuilder.class);
-        c.dup();
-        c.ldc(currentState.soFar);
-        c.invokespecial(StringBuilder.class.getName(), "<init>", "(Ljava/lang/String;)V");
-        c.swap();
-        c.invokevirtual(StringBuilder.class.getName(), "append", "(C)Ljava/lang/StringBuilder;");
-        c.astore(STATE_STRING_BUILDER_VAR);
-        c.gotoInstruction(noStateStart);
+        //the code to finish off the token is shared with the prefix match, which keeps each state small
+        if (!stateMachine.isSelective()) {
+            c.ldc(currentState.soFar);
+            c.astore(STATE_CURRENT_VAR);
+            c.iconst(currentState.soFar.length());
+            c.istore(STATE_POS_VAR);
+        }
+        c.gotoInstruction(noMatchStart);
 
         //now we write out tokenEnd
-        for (AtomicReference<BranchEnd> tokenEnd : tokenEnds) {
-            c.branchEnd(tokenEnd.get());
-        }
-        c.pop(); //opo off our extra byte, we don't need it
+        c.branchEnd(tokenEnd);
+        c.pop(); //pop off our extra byte, we don't need it
         if (!currentState.soFar.equals("")) {
-            c.ldc(currentState.soFar);
-            if (currentState.finalState) {
-                stateMachine.handleStateMachineMatchedToken(c);
+            if (currentState.finalState && stateMachine.isSkipped(currentState.soFar)) {
+                //there is nothing to pass on, and the handler cannot ask us to stop
+                c.iconst(0);
+                tokenDone(c, returnCompleteCode, returnStoppedCode, stateMachine);
             } else {
-                stateMachine.handleOtherToken(c);
+                c.ldc(currentState.soFar);
+                c.astore(STATE_CURRENT_VAR);
+                c.gotoInstruction(currentState.finalState ? matchedTokenStart : otherTokenStart);
             }
-            //TODO: exit if it returns null
-            tokenDone(c, returnCompleteCode, stateMachine);
         } else {
             setupLocalVariables(c);
             handleReturnIfNoMoreBytes(c, returnIncompleteCode);
@@ -643,7 +1149,7 @@ public class TokenizerGenerator {
             final State state = e.getKey();
             if (state.stateno < 0) {
                 //prefix match
-                c.iconst(state.stateno);
+                c.iconst(stateMachine.isSkipped(state.terminalState) ? TokenState.PREFIX_MATCH_SKIP : TokenState.PREFIX_MATCH);
                 c.istore(CURRENT_STATE_VAR);
                 c.ldc(state.terminalState);
                 c.astore(STATE_CURRENT_VAR);
@@ -655,16 +1161,76 @@ public class TokenizerGenerator {
             } else {
                 c.iconst(state.stateno);
                 c.istore(CURRENT_STATE_VAR);
-                state.jumpTo(c);
+                //the next state reads a byte straight away, so we need to make sure there is one
+                handleReturnIfNoMoreBytes(c, returnIncompleteCode);
+                if (state.method == method) {
+                    state.jumpTo(c);
+                } else {
+                    c.gotoInstruction(delegates.get(state.method));
+                }
             }
         }
     }
 
     /**
-     * Throws an exception when an invalid state is hit in a tableswitch
+     * Writes the switch for the transitions out of the given state, using a tableswitch if the successor bytes are
+     * dense enough and a lookupswitch otherwise (this uses the same cost heuristic as javac).
+     * <p/>
+     * Any gaps in a tableswitch are added to <code>holes</code>, and must be treated the same as the default branch.
+     *
+     * @return The default branch
+     */
+    private static AtomicReference<BranchEnd> writeTransitionSwitch(final CodeAttribute c, final State currentState, final Map<State, AtomicReference<BranchEnd>> ends, final List<AtomicReference<BranchEnd>> holes) {
+        final TreeMap<Integer, State> byValue = new TreeMap<Integer, State>();
+        for (final State state : currentState.next.values()) {
+            byValue.put((int) state.value, state);
+        }
+        final int low = byValue.firstKey();
+        final int high = byValue.lastKey();
+        final int labels = byValue.size();
+        final int tableCost = 4 + (high - low + 1) + 3 * 3;
+        final int lookupCost = 3 + 2 * labels + 3 * labels;
+        if (tableCost <= lookupCost) {
+            final TableSwitchBuilder builder = new TableSwitchBuilder(low, high);
+            for (int i = low; i <= high; ++i) {
+                final State state = byValue.get(i);
+                if (state == null) {
+                    holes.add(builder.add());
+                } else {
+                    ends.put(state, builder.add());
+                }
+            }
+            c.tableswitch(builder);
+            return builder.getDefaultBranchEnd();
+        } else {
+            final LookupSwitchBuilder builder = new LookupSwitchBuilder();
+            for (final State state : byValue.values()) {
+                ends.put(state, builder.add(state.value));
+            }
+            c.lookupswitch(builder);
+            return builder.getDefaultBranchEnd();
+        }
+    }
+
+    /**
+     * Looks up the byte on the top of the stack in the byte class table, and branches if it ends the current
+     * token. The byte is left on the stack whichever way this goes.
+     */
+    private static BranchEnd ifDelimiter(final CodeAttribute c, final CustomStateMachine stateMachine) {
+        c.dup();
+        c.getstatic(TokenizerParent.class.getName(), stateMachine.isHeader() ? "HEADER_BYTE_CLASSES" : "BYTE_CLASSES", "[B");
+        c.swap();
+        c.iconst(0xFF);
+        c.iand();
+        c.baload();
+        return c.ifne();
+    }
+
+    /**
+     * Throws an exception when an invalid state is hit in a switch
      */
-    private static void stateNotFound(final CodeAttribute c, final TableSwitchBuilder builder) {
-        c.branchEnd(builder.getDefaultBranchEnd().get());
+    private static void stateNotFound(final CodeAttribute c, final AtomicReference<BranchEnd> defaultBranchEnd) {
+        c.branchEnd(defaultBranchEnd.get());
         c.newInstruction(RuntimeException.class);
         c.dup();
         c.ldc("Could not find state");
@@ -703,6 +1269,10 @@ public class TokenizerGenerator {
         final byte value;
         final String soFar;
         final Map<Byte, State> next = new HashMap<Byte, State>();
+        /**
+         * The method that the code for this state is generated in
+         */
+        StateMachineMethod method;
         private final Set<BranchEnd> branchEnds = new HashSet<BranchEnd>();
         private CodeLocation location;
 
@@ -716,6 +1286,11 @@ public class TokenizerGenerator {
             return stateno.compareTo(o.stateno);
         }
 
+        void clearCode() {
+            location = null;
+            branchEnds.clear();
+        }
+
         void mark(final CodeAttribute ca) {
             location = ca.mark();
             for (BranchEnd br : branchEnds) {
@@ -740,6 +1315,28 @@ public class TokenizerGenerator {
         }
     }
 
+    /**
+     * A generated method that contains part of a state machine. Normally the whole state machine is a single
+     * method, however if it is too large then parts of the trie are generated in separate methods.
+     */
+    private static class StateMachineMethod {
+
+        final String name;
+        /**
+         * The states that this method can be entered at. For the main method this is only the initial state.
+         */
+        final List<State> entryStates = new ArrayList<State>();
+
+        private StateMachineMethod(final String name, final State entryState) {
+            this.name = name;
+            this.entryStates.add(entryState);
+        }
+
+        boolean isMain() {
+            return entryStates.get(0).soFar.isEmpty();
+        }
+    }
+
     /**
      * A class that separates out the different behaviour of the three state machines (VERB, VERSION and HEADER)
      */
@@ -747,8 +1344,26 @@ public class TokenizerGenerator {
 
         boolean isHeader();
 
+        /**
+         * If this is true then only some of the tokens that the state machine was generated from are wanted, and all
+         * other tokens are dropped without being read into the token scratch area
+         */
+        boolean isSelective();
+
+        /**
+         * @return true if the given token is one that the state machine was generated from, but it is not wanted
+         */
+        boolean isSkipped(String token);
+
+        /**
+         * Passes on the token on the top of the stack, which is one of the values the state machine was generated
+         * from. This must leave a boolean on the stack, which is true if parsing should stop.
+         */
         void handleStateMachineMatchedToken(final CodeAttribute c);
 
+        /**
+         * As {@link #handleStateMachineMatchedToken(CodeAttribute)}, for any other token
+         */
         void handleOtherToken(final CodeAttribute c);
 
         void updateParseState(CodeAttribute c);
@@ -757,23 +1372,51 @@ public class TokenizerGenerator {
 
     private static class HeaderStateMachine implements CustomStateMachine {
 
+        /**
+         * The headers that are passed on to the handler, or null for all of them
+         */
+        private final Set<String> materializedHeaders;
+
+        private HeaderStateMachine(final Set<String> materializedHeaders) {
+            this.materializedHeaders = materializedHeaders;
+        }
+
         @Override
         public boolean isHeader() {
             return true;
         }
 
+        @Override
+        public boolean isSelective() {
+            return materializedHeaders != null;
+        }
+
+        @Override
+        public boolean isSkipped(final String token) {
+            return materializedHeaders != null && !materializedHeaders.contains(token);
+        }
+
         @Override
         public void handleOtherToken(final CodeAttribute c) {
-            c.aload(HTTP_EXCHANGE_BUILDER);
+            if (materializedHeaders != null) {
+                //no header name is recorded, so the value is skipped
+                c.pop();
+                c.iconst(0);
+                return;
+            }
+            //the handler is called once we have the value as well
+            c.aload(TOKEN_STATE_VAR);
             c.swap();
-            c.putfield(HttpExchangeBuilder.class.getName(), "nextOtherHeader", DescriptorUtils.makeDescriptor(String.class));
+            c.putfield(TokenState.class.getName(), "nextOtherHeader", DescriptorUtils.makeDescriptor(String.class));
+            c.iconst(0);
         }
 
         @Override
         public void handleStateMachineMatchedToken(final CodeAttribute c) {
-            c.aload(HTTP_EXCHANGE_BUILDER);
+            c.aload(TOKEN_STATE_VAR);
             c.swap();
-            c.putfield(HttpExchangeBuilder.class.getName(), "nextStandardHeader", DescriptorUtils.makeDescriptor(String.class));
+            c.putfield(TokenState.class.getName(), "nextStandardHeader", DescriptorUtils.makeDescriptor(String.class));
+            c.iconst(0);
         }
 
         @Override
@@ -791,6 +1434,16 @@ public class TokenizerGenerator {
             return false;
         }
 
+        @Override
+        public boolean isSelective() {
+            return false;
+        }
+
+        @Override
+        public boolean isSkipped(final String token) {
+            return false;
+        }
+
         @Override
         public void handleStateMachineMatchedToken(final CodeAttribute c) {
             handleOtherToken(c);
@@ -798,9 +1451,9 @@ public class TokenizerGenerator {
 
         @Override
         public void handleOtherToken(final CodeAttribute c) {
-            c.aload(HTTP_EXCHANGE_BUILDER);
+            c.aload(TOKEN_HANDLER_VAR);
             c.swap();
-            c.putfield(HttpExchangeBuilder.class.getName(), "verb", DescriptorUtils.makeDescriptor(String.class));
+            c.invokeinterface(TokenHandler.class.getName(), "handleVerb", "(Ljava/lang/String;)Z");
         }
 
         @Override
@@ -818,11 +1471,21 @@ public class TokenizerGenerator {
             return false;
         }
 
+        @Override
+        public boolean isSelective() {
+            return false;
+        }
+
+        @Override
+        public boolean isSkipped(final String token) {
+            return false;
+        }
+
         @Override
         public void handleOtherToken(final CodeAttribute c) {
-            c.aload(HTTP_EXCHANGE_BUILDER);
+            c.aload(TOKEN_HANDLER_VAR);
             c.swap();
-            c.putfield(HttpExchangeBuilder.class.getName(), "httpVersion", DescriptorUtils.makeDescriptor(String.class));
+            c.invokeinterface(TokenHandler.class.getName(), "handleVersion", "(Ljava/lang/String;)Z");
         }
 
         @Override
@@ -832,8 +1495,10 @@ public class TokenizerGenerator {
 
         @Override
         public void updateParseState(final CodeAttribute c) {
+            //the value parser takes care of the end of the request line, and then either finds the first header
+            //or the end of the headers
             c.aload(TOKEN_STATE_VAR);
-            c.iconst(TokenState.HEADER);
+            c.iconst(TokenState.HEADER_VALUE);
             c.putfield(TokenState.class.getName(), "state", "I");
         }
 
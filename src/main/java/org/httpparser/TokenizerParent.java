@@ -23,6 +23,7 @@
 package org.httpparser;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
 
 /**
  * Super class of the generated
@@ -31,27 +32,70 @@ import java.nio.ByteBuffer;
  */
 public class TokenizerParent {
 
-    @SuppressWarnings("unused")
-    final int handlePath(ByteBuffer buffer, int remaining, TokenState state, HttpExchangeBuilder builder) {
-        StringBuilder stringBuilder = state.stringBuilder;
-        if (stringBuilder == null) {
-            state.stringBuilder = stringBuilder = new StringBuilder();
+    //byte classes
+    static final byte TOKEN_CHAR = 0;
+    static final byte WHITESPACE_CHAR = 1;
+    static final byte LINE_END_CHAR = 2;
+    static final byte COLON_CHAR = 3;
+
+    /**
+     * Byte class tables used by the generated state machines, indexed by <code>byte & 0xFF</code>. Anything
+     * other than {@link #TOKEN_CHAR} ends the current token. Header names are also ended by a colon, so they
+     * have their own table.
+     */
+    static final byte[] BYTE_CLASSES = createByteClasses(false);
+    static final byte[] HEADER_BYTE_CLASSES = createByteClasses(true);
+
+    /**
+     * The size of the bytecode of each generated method, keyed by method name.
+     */
+    Map<String, Integer> methodSizes;
+
+    /**
+     * What the generator produced for this tokenizer, or null if it was not generated
+     */
+    TokenizerDiagnostics diagnostics;
+
+    private static byte[] createByteClasses(final boolean header) {
+        final byte[] classes = new byte[256];
+        classes[' '] = WHITESPACE_CHAR;
+        classes['\t'] = WHITESPACE_CHAR;
+        classes['\r'] = LINE_END_CHAR;
+        classes['\n'] = LINE_END_CHAR;
+        if (header) {
+            classes[':'] = COLON_CHAR;
         }
+        return classes;
+    }
+
+    /**
+     * @return The size of the bytecode of each method of the generated tokenizer, keyed by method name
+     */
+    public Map<String, Integer> getMethodSizes() {
+        return methodSizes;
+    }
+
+    @SuppressWarnings("unused")
+    final int handlePath(ByteBuffer buffer, int remaining, TokenState state, TokenHandler handler) {
+        final Object base = BufferAccess.base(buffer);
+        final long address = BufferAccess.address(buffer);
+        int index = buffer.position();
         while (remaining > 0) {
-            final char next = (char) buffer.get();
+            final byte next = BufferAccess.getByte(buffer, base, address, index++);
             --remaining;
             if (next == ' ' || next == '\t') {
-                if (stringBuilder.length() != 0) {
-                    builder.path = stringBuilder.toString();
-                    state.state = TokenState.VERSION;
-                    state.stringBuilder = null;
+                if (state.tokenLength != 0) {
+                    final boolean stop = handler.handlePath(state.tokenBytes, 0, state.tokenLength);
+                    state.clearToken();
+                    state.state = stop ? TokenState.PARSE_STOPPED : TokenState.VERSION;
                     break;
                 }
             } else {
-                stringBuilder.append(next);
+                state.append(next);
             }
 
         }
+        buffer.position(index);
         return remaining;
     }
 
@@ -59,19 +103,23 @@ public class TokenizerParent {
     private static final int NORMAL = 1;
     private static final int BEGIN_LINE_END = 2;
     private static final int LINE_END = 3;
+    /**
+     * We have seen the CR of the blank line that ends the headers
+     */
+    private static final int END_OF_HEADERS = 4;
 
 
     @SuppressWarnings("unused")
-    final int handleHeaderValue(ByteBuffer buffer, int remaining, TokenState state, HttpExchangeBuilder builder) {
-        StringBuilder stringBuilder = state.stringBuilder;
-        if (stringBuilder == null) {
-            state.stringBuilder = stringBuilder = new StringBuilder();
-        }
-
+    final int handleHeaderValue(ByteBuffer buffer, int remaining, TokenState state, TokenHandler handler) {
+        final Object base = BufferAccess.base(buffer);
+        final long address = BufferAccess.address(buffer);
+        int index = buffer.position();
 
         int parseState = state.parseState;
+        //if no header name was recorded then this value is not wanted, so we only need to find the end of it
+        final boolean skip = state.nextStandardHeader == null && state.nextOtherHeader == null;
         while (remaining > 0) {
-            final byte next = buffer.get();
+            final byte next = BufferAccess.getByte(buffer, base, address, index++);
             --remaining;
             switch (parseState) {
                 case NORMAL: {
@@ -79,8 +127,8 @@ public class TokenizerParent {
                         parseState = BEGIN_LINE_END;
                     } else if (next == '\n') {
                         parseState = LINE_END;
-                    } else {
-                        stringBuilder.append((char) next);
+                    } else if (!skip) {
+                        state.append(next);
                     }
                     break;
                 }
@@ -90,7 +138,9 @@ public class TokenizerParent {
                     } else if (next == '\n') {
                         parseState = LINE_END;
                     } else if (next != ' ' && next != '\t') {
-                        stringBuilder.append((char) next);
+                        if (!skip) {
+                            state.append(next);
+                        }
                         parseState = NORMAL;
                     }
                     break;
@@ -102,33 +152,60 @@ public class TokenizerParent {
                     } else if (next == '\t' ||
                             next == ' ') {
                         //this is a continuation
-                        stringBuilder.append(' ');
+                        if (!skip) {
+                            state.append((byte) ' ');
+                        }
                         parseState = EAT_WHITESPACE;
                     } else {
-                        if (stringBuilder.length() != 0) {
-                            //we have a header
-                            String nextStandardHeader = builder.nextStandardHeader;
-                            if (nextStandardHeader != null) {
-                                builder.standardHeaders.put(nextStandardHeader, stringBuilder.toString());
-                                builder.nextStandardHeader = null;
-                            } else {
-                                builder.otherHeaders.put(builder.nextOtherHeader, stringBuilder.toString());
-                                builder.nextOtherHeader = null;
-                            }
-                            state.state = TokenState.HEADER;
-                            state.leftOver = next;
-                            state.stringBuilder = null;
+                        //the line has ended, so we have a header. If the line ended straight after the request
+                        //line then there is no header waiting for its value
+                        boolean stop = false;
+                        if (state.nextStandardHeader != null) {
+                            stop = handler.handleStandardHeader(state.nextStandardHeader, state.tokenBytes, 0, state.tokenLength);
+                            state.nextStandardHeader = null;
+                        } else if (state.nextOtherHeader != null) {
+                            stop = handler.handleOtherHeader(state.nextOtherHeader, state.tokenBytes, 0, state.tokenLength);
+                            state.nextOtherHeader = null;
+                        }
+                        state.clearToken();
+                        if (stop) {
+                            state.state = TokenState.PARSE_STOPPED;
+                            buffer.position(index);
                             return remaining;
+                        } else if (next == '\r') {
+                            parseState = END_OF_HEADERS;
+                        } else if (next == '\n') {
+                            return headersComplete(buffer, index, remaining, state, handler);
                         } else {
-                            state.state = TokenState.PARSE_COMPLETE;
+                            state.state = TokenState.HEADER;
+                            //parseState is shared with the header state machine
+                            state.parseState = 0;
+                            state.leftOver = next;
+                            buffer.position(index);
                             return remaining;
                         }
                     }
                     break;
                 }
+                case END_OF_HEADERS: {
+                    if (next != '\n') {
+                        //a bare CR, we don't consume the byte after it as it is not part of the headers
+                        --index;
+                        ++remaining;
+                    }
+                    return headersComplete(buffer, index, remaining, state, handler);
+                }
             }
         }
         state.parseState = parseState;
+        buffer.position(index);
+        return remaining;
+    }
+
+    private static int headersComplete(final ByteBuffer buffer, final int index, final int remaining, final TokenState state, final TokenHandler handler) {
+        state.state = handler.handleHeadersComplete() ? TokenState.PARSE_STOPPED : TokenState.PARSE_COMPLETE;
+        state.parseState = 0;
+        buffer.position(index);
         return remaining;
     }
 }
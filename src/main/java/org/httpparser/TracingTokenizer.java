@@ -0,0 +1,79 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A tokenizer that records how long each phase of parsing a request takes, and how many buffers the request
+ * arrived in. This wraps another tokenizer, so when tracing is not wanted the tokenizer is simply not wrapped
+ * and costs nothing.
+ * <p/>
+ * A request is traced from the first call to {@link #handle} until {@link #dispatched(TokenState)} is called,
+ * at which point the trace is passed to the listener.
+ *
+ * @author Stuart Douglas
+ */
+public class TracingTokenizer implements Tokenizer {
+
+    private final Tokenizer delegate;
+    private final ParseTraceListener listener;
+
+    public TracingTokenizer(final Tokenizer delegate, final ParseTraceListener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+    }
+
+    @Override
+    public int handle(final ByteBuffer buffer, final int noBytes, final TokenState currentState, final TokenHandler handler) {
+        ParseTrace trace = currentState.trace;
+        if (trace == null) {
+            currentState.trace = trace = new ParseTrace();
+        }
+        if (trace.fragments++ == 0) {
+            trace.firstByte = System.nanoTime();
+        }
+        trace.delegate = handler;
+        try {
+            return delegate.handle(buffer, noBytes, currentState, trace);
+        } finally {
+            trace.delegate = null;
+        }
+    }
+
+    /**
+     * Called once the request that is being parsed with the given state has been handed to its handler
+     */
+    public void dispatched(final TokenState state) {
+        final ParseTrace trace = state.trace;
+        if (trace == null) {
+            return;
+        }
+        trace.dispatched = System.nanoTime();
+        try {
+            listener.requestTraced(trace);
+        } finally {
+            trace.reset();
+        }
+    }
+}
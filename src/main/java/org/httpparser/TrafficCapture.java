@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the raw bytes of inbound requests into a memory mapped file, so that real traffic can be replayed
+ * through a tokenizer offline.
+ * <p/>
+ * Every read is recorded as a separate fragment, together with the connection it was read from, so a replay
+ * sees the same fragment boundaries and interleaving of connections as the server did. Each fragment is stored
+ * as the connection id, the length and then the bytes. A length of zero marks the end of the capture, which is
+ * where the preallocated part of the file that was never written starts.
+ * <p/>
+ * Once the file is full further fragments are not recorded.
+ *
+ * @author Stuart Douglas
+ */
+public class TrafficCapture implements Closeable {
+
+    private static final int FRAGMENT_HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    private boolean full;
+
+    /**
+     * @param file     The file to write the capture to. It is created if needed, and its contents are overwritten.
+     * @param fileSize The maximum size of the capture
+     */
+    public TrafficCapture(final File file, final int fileSize) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        //truncate first, so that none of the previous capture is left after the end marker
+        this.file.setLength(0);
+        this.file.setLength(fileSize);
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+    }
+
+    /**
+     * Records the next <code>noBytes</code> bytes of the buffer. The position of the buffer is not changed, so this
+     * should be called with the same arguments as {@link Tokenizer#handle(ByteBuffer, int, TokenState, TokenHandler)},
+     * before the tokenizer is invoked.
+     *
+     * @param connection The id of the connection that the bytes were read from
+     * @return false if the capture is full, and the bytes were not recorded
+     */
+    public synchronized boolean capture(final int connection, final ByteBuffer buffer, final int noBytes) {
+        if (noBytes == 0) {
+            return true;
+        }
+        //always leave room for the end marker
+        if (full || this.buffer.remaining() < noBytes + FRAGMENT_HEADER_SIZE * 2) {
+            full = true;
+            return false;
+        }
+        this.buffer.putInt(connection);
+        this.buffer.putInt(noBytes);
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(bytes.position() + noBytes);
+        this.buffer.put(bytes);
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        //the rest of the file was zero filled when it was preallocated, so it already ends with an end marker
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * Reads a capture back. The fragments are read only views of the mapped file, in the order they were captured.
+     */
+    public static List<Fragment> read(final File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            final List<Fragment> fragments = new ArrayList<Fragment>();
+            while (buffer.remaining() >= FRAGMENT_HEADER_SIZE) {
+                final int connection = buffer.getInt();
+                final int length = buffer.getInt();
+                if (length == 0) {
+                    break;
+                } else if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Corrupt capture, fragment of " + length + " bytes at " + (buffer.position() - FRAGMENT_HEADER_SIZE));
+                }
+                final ByteBuffer bytes = buffer.duplicate();
+                bytes.limit(bytes.position() + length);
+                //slice so that the capacity of the fragment is its length
+                fragments.add(new Fragment(connection, bytes.slice()));
+                buffer.position(bytes.limit());
+            }
+            return fragments;
+        } finally {
+            //the mapping stays valid after the file is closed
+            in.close();
+        }
+    }
+
+    /**
+     * The bytes of a single read
+     */
+    public static final class Fragment {
+        private final int connection;
+        private final ByteBuffer bytes;
+
+        Fragment(final int connection, final ByteBuffer bytes) {
+            this.connection = connection;
+            this.bytes = bytes;
+        }
+
+        public int getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return A new view of the bytes, so callers can each consume it independently
+         */
+        public ByteBuffer getBytes() {
+            return bytes.duplicate();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+/**
+ * A token trie flattened into arrays, for use by the {@link InterpretedTokenizer}. States are numbered from 0,
+ * which is the initial state, and the transitions out of state <code>s</code> are the entries between
+ * <code>offsets[s]</code> and <code>offsets[s + 1]</code> of {@link #bytes} and {@link #targets}.
+ *
+ * @author Stuart Douglas
+ */
+final class TransitionTable {
+
+    final int[] offsets;
+    final byte[] bytes;
+    final int[] targets;
+
+    /**
+     * The value that each state matches if the token ends there, or null if it is not a final state
+     * (or its token is not wanted). These are the interned values, the same as the generated code passes on.
+     */
+    final String[] values;
+
+    /**
+     * The part of the token that has been matched by the time each state is reached
+     */
+    final String[] prefixes;
+
+    /**
+     * If only some values are wanted, in which case other tokens are not read into the scratch area
+     */
+    final boolean selective;
+
+    TransitionTable(final int[] offsets, final byte[] bytes, final int[] targets, final String[] values, final String[] prefixes, final boolean selective) {
+        this.offsets = offsets;
+        this.bytes = bytes;
+        this.targets = targets;
+        this.values = values;
+        this.prefixes = prefixes;
+        this.selective = selective;
+    }
+
+    /**
+     * @return The state that the given byte leads to, or -1 if there is no transition for it
+     */
+    int next(final int state, final byte b) {
+        final int end = offsets[state + 1];
+        for (int i = offsets[state]; i < end; ++i) {
+            if (bytes[i] == b) {
+                return targets[i];
+            }
+        }
+        return -1;
+    }
+}
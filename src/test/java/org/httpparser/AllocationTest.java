@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the number of bytes the tokenizers allocate per request against a budget, so that changes to the
+ * generator that add allocations on the parse path are caught. Unlike a timing benchmark this is deterministic
+ * enough to run as a unit test.
+ * <p/>
+ * The requests are parsed with a handler that does not allocate and a token state that is reused, so all that
+ * is measured is the tokenizer itself. The only thing it should allocate is the string for each token that is
+ * not one of the configured values. Every request of the {@link TokenizerBenchmark} corpus is parsed in one
+ * buffer, and then split into two buffers at every possible point.
+ *
+ * @author Stuart Douglas
+ */
+public class AllocationTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 1000;
+    private static final int SPLIT_ITERATIONS = 20;
+
+    /**
+     * The most an unknown token may allocate. This is enough for a string of up to 28 characters on a JVM that
+     * stores strings as UTF-16.
+     */
+    private static final int BYTES_PER_UNKNOWN_TOKEN = 96;
+
+    /**
+     * Allowance for the odd allocation by the JVM itself, e.g. when a method is recompiled
+     */
+    private static final int SLACK = 16;
+
+    /**
+     * The most heap an idle connection's token state may retain, which is the object itself and the reference to it.
+     * This is what it needs without compressed oops, and less than it would be if it kept its scratch area.
+     */
+    private static final int IDLE_STATE_BUDGET = 96;
+
+    /**
+     * The object header and reference size without compressed oops, so the estimated size is an upper bound
+     */
+    private static final int OBJECT_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 8;
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    @BeforeClass
+    public static void setup() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testGenerated() {
+        checkBudget("generated", TokenizerGenerator.createTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES));
+    }
+
+    @Test
+    public void testMaterialized() {
+        checkBudget("materialized", TokenizerGenerator.createTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES, new String[]{"Host"}));
+    }
+
+    @Test
+    public void testSplitStateMachine() {
+        checkBudget("split", TokenizerGenerator.createTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES, 2000));
+    }
+
+    @Test
+    public void testInterpreted() {
+        checkBudget("interpreted", TokenizerGenerator.createInterpretedTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES));
+    }
+
+    /**
+     * Checks the heap retained by the token state of an idle keep-alive connection, once a request has been
+     * parsed with it and it has been reset for the next one. The reset state must not reference anything, so what
+     * it retains is its shallow size, which is worked out from its fields.
+     */
+    @Test
+    public void testIdleFootprint() throws IllegalAccessException {
+        final Tokenizer tokenizer = TokenizerGenerator.createTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        final CountingHandler handler = new CountingHandler();
+        for (final String request : TokenizerBenchmark.MIXED_TRAFFIC) {
+            final TokenState state = new TokenState();
+            final byte[] bytes = request.getBytes();
+            //split so the state has to keep a partial token between the buffers
+            parse(tokenizer, state, buffer, handler, bytes, bytes.length / 2);
+            state.reset();
+            long size = OBJECT_HEADER_SIZE;
+            for (final Field field : TokenState.class.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                if (field.getType().isPrimitive()) {
+                    size += primitiveSize(field.getType());
+                } else {
+                    field.setAccessible(true);
+                    Assert.assertNull(field.getName() + " is still referenced by an idle state", field.get(state));
+                    size += REFERENCE_SIZE;
+                }
+            }
+            //objects are aligned to 8 bytes
+            final long retained = ((size + 7) & ~7) + REFERENCE_SIZE;
+            Assert.assertTrue("an idle connection retains " + retained + " bytes, the budget is " + IDLE_STATE_BUDGET, retained <= IDLE_STATE_BUDGET);
+        }
+    }
+
+    private static int primitiveSize(final Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static void checkBudget(final String name, final Tokenizer tokenizer) {
+        final byte[][] corpus = new byte[TokenizerBenchmark.MIXED_TRAFFIC.length][];
+        for (int i = 0; i < corpus.length; ++i) {
+            corpus[i] = TokenizerBenchmark.MIXED_TRAFFIC[i].getBytes();
+        }
+        final TokenState state = new TokenState();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        final CountingHandler handler = new CountingHandler();
+        for (int i = 0; i < WARMUP; ++i) {
+            final byte[] request = corpus[i % corpus.length];
+            parse(tokenizer, state, buffer, handler, request, i % request.length);
+        }
+        for (int r = 0; r < corpus.length; ++r) {
+            final byte[] request = corpus[r];
+            handler.unknownTokens = 0;
+            parse(tokenizer, state, buffer, handler, request, request.length);
+            final long budget = handler.unknownTokens * BYTES_PER_UNKNOWN_TOKEN + SLACK;
+
+            long start = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; ++i) {
+                parse(tokenizer, state, buffer, handler, request, request.length);
+            }
+            final long whole = (allocatedBytes() - start) / ITERATIONS;
+            Assert.assertTrue(name + " request " + r + " allocated " + whole + " bytes, the budget is " + budget, whole <= budget);
+
+            start = allocatedBytes();
+            for (int split = 0; split <= request.length; ++split) {
+                for (int i = 0; i < SPLIT_ITERATIONS; ++i) {
+                    parse(tokenizer, state, buffer, handler, request, split);
+                }
+            }
+            final long split = (allocatedBytes() - start) / ((request.length + 1) * SPLIT_ITERATIONS);
+            Assert.assertTrue(name + " request " + r + " allocated " + split + " bytes when split, the budget is " + budget, split <= budget);
+        }
+    }
+
+    private static void parse(final Tokenizer tokenizer, final TokenState state, final ByteBuffer buffer, final TokenHandler handler, final byte[] request, final int split) {
+        state.reset();
+        buffer.clear();
+        buffer.put(request);
+        buffer.flip();
+        tokenizer.handle(buffer, split, state, handler);
+        tokenizer.handle(buffer, buffer.remaining(), state, handler);
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, state.state);
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A handler that just counts the tokens that are not one of the configured values
+     */
+    private static final class CountingHandler implements TokenHandler {
+
+        int unknownTokens;
+
+        @Override
+        public boolean handleVerb(final String verb) {
+            count(verb, SimpleTest.VERBS);
+            return false;
+        }
+
+        @Override
+        public boolean handlePath(final byte[] bytes, final int offset, final int length) {
+            return false;
+        }
+
+        @Override
+        public boolean handleVersion(final String version) {
+            count(version, SimpleTest.VERSIONS);
+            return false;
+        }
+
+        @Override
+        public boolean handleStandardHeader(final String header, final byte[] value, final int offset, final int length) {
+            return false;
+        }
+
+        @Override
+        public boolean handleOtherHeader(final String header, final byte[] value, final int offset, final int length) {
+            ++unknownTokens;
+            return false;
+        }
+
+        @Override
+        public boolean handleHeadersComplete() {
+            return false;
+        }
+
+        private void count(final String token, final String[] values) {
+            for (final String value : values) {
+                if (value == token) {
+                    return;
+                }
+            }
+            ++unknownTokens;
+        }
+    }
+}
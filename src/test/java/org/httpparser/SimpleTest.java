@@ -22,10 +22,35 @@
 
 package org.httpparser;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.xnio.channels.SuspendableReadChannel;
 
 /**
  * @author Stuart Douglas
@@ -110,5 +135,1200 @@ public class SimpleTest {
         Assert.assertEquals("some value", result.otherHeaders.get("OtherHeader"));
     }
 
+    @Test
+    public void testDirectBuffer() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = "POST /somepath HTTP/1.0\r\nContent-Type: text/plain\r\nX-Custom:value\r\n\r\n".getBytes();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(in.length + 10);
+        buffer.position(10);
+        buffer.put(in);
+        buffer.flip();
+        buffer.position(10);
+        final TokenState context = new TokenState();
+
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(buffer, in.length, context, result);
+        Assert.assertEquals(buffer.limit(), buffer.position());
+        Assert.assertSame("POST", result.verb);
+        Assert.assertEquals("/somepath", result.path);
+        Assert.assertSame("HTTP/1.0", result.httpVersion);
+        Assert.assertEquals("text/plain", result.standardHeaders.get("Content-Type"));
+        Assert.assertEquals("value", result.otherHeaders.get("X-Custom"));
+    }
+
+    @Test
+    public void testTypedHeaders() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = ("POST /somepath HTTP/1.1\r\nContent-Length: 1234\r\nConnection: Keep-Alive, upgrade\r\n" +
+                "Expect: 100-continue\r\nTransfer-Encoding: gzip, chunked\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n" +
+                "If-Modified-Since: Thu, 29 Feb 2024 23:59:59 GMT\r\n\r\n").getBytes();
+        final TokenState context = new TokenState();
+
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, result);
+        Assert.assertEquals(1234, result.getContentLength());
+        Assert.assertEquals(HttpExchangeBuilder.CONNECTION_KEEP_ALIVE | HttpExchangeBuilder.CONNECTION_UPGRADE |
+                HttpExchangeBuilder.EXPECT_CONTINUE | HttpExchangeBuilder.TRANSFER_ENCODING_CHUNKED |
+                HttpExchangeBuilder.TRANSFER_ENCODING_OTHER, result.getFlags());
+        Assert.assertEquals(784111777000L, result.getDate());
+        Assert.assertEquals(1709251199000L, result.getIfModifiedSince());
+        //only the header that the flags cannot fully describe is kept as a string
+        Assert.assertEquals(1, result.standardHeaders.size());
+        Assert.assertEquals("gzip, chunked", result.standardHeaders.get("Transfer-Encoding"));
+
+        in = ("GET / HTTP/1.1\r\nContent-Length: 12a\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\nExpect: 200-ok\r\n" +
+                "Connection: close, TE, HTTP2-Settings\r\nIf-Modified-Since: yesterday\r\n\r\n").getBytes();
+        result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+        Assert.assertEquals(-1, result.getContentLength());
+        Assert.assertEquals(HttpExchangeBuilder.CONTENT_LENGTH_INVALID | HttpExchangeBuilder.EXPECT_UNKNOWN |
+                HttpExchangeBuilder.CONNECTION_CLOSE | HttpExchangeBuilder.CONNECTION_OTHER, result.getFlags());
+        Assert.assertEquals(784111777000L, result.getDate());
+        Assert.assertEquals(-1, result.getIfModifiedSince());
+        Assert.assertEquals(4, result.standardHeaders.size());
+        Assert.assertEquals("12a", result.standardHeaders.get("Content-Length"));
+        Assert.assertEquals("200-ok", result.standardHeaders.get("Expect"));
+        Assert.assertEquals("close, TE, HTTP2-Settings", result.standardHeaders.get("Connection"));
+        Assert.assertEquals("yesterday", result.standardHeaders.get("If-Modified-Since"));
+        Assert.assertNull(result.standardHeaders.get("Date"));
+    }
+
+    @Test
+    public void testUnknownTokensSharingPrefix() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = "PUTS /somepath HTTP/1.1\r\nStrict-Transport-Securitz: a\r\nHostname: b\r\nAuthorizationX: c\r\n\r\n".getBytes();
+        final TokenState context = new TokenState();
+
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, result);
+        Assert.assertEquals("PUTS", result.verb);
+        Assert.assertTrue(result.standardHeaders.isEmpty());
+        Assert.assertEquals("a", result.otherHeaders.get("Strict-Transport-Securitz"));
+        Assert.assertEquals("b", result.otherHeaders.get("Hostname"));
+        Assert.assertEquals("c", result.otherHeaders.get("AuthorizationX"));
+    }
+
+    @Test
+    public void testValueThatIsPrefixOfAnother() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nSet-Cookie: a\r\nSet-Cookie2: b\r\nSet-Cook: c\r\n\r\n".getBytes();
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+        Assert.assertEquals("a", result.standardHeaders.get("Set-Cookie"));
+        Assert.assertEquals("b", result.standardHeaders.get("Set-Cookie2"));
+        Assert.assertEquals("c", result.otherHeaders.get("Set-Cook"));
+        Assert.assertEquals(1, result.otherHeaders.size());
+    }
+
+    @Test
+    public void testTokenHandler() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nX-Route: a\r\nHost: www.somehost.net\r\nCookie: c\r\n\r\nbody".getBytes();
+        final List<String> tokens = new ArrayList<String>();
+        final TokenHandler handler = new TokenHandler() {
+            @Override
+            public boolean handleVerb(final String verb) {
+                tokens.add(verb);
+                return false;
+            }
+
+            @Override
+            public boolean handlePath(final byte[] bytes, final int offset, final int length) {
+                tokens.add(new String(bytes, offset, length));
+                return false;
+            }
+
+            @Override
+            public boolean handleVersion(final String version) {
+                tokens.add(version);
+                return false;
+            }
+
+            @Override
+            public boolean handleStandardHeader(final String header, final byte[] value, final int offset, final int length) {
+                tokens.add(header + "=" + new String(value, offset, length));
+                //we have enough to route the request
+                return header == "Host";
+            }
+
+            @Override
+            public boolean handleOtherHeader(final String header, final byte[] value, final int offset, final int length) {
+                tokens.add(header + "=" + new String(value, offset, length));
+                return false;
+            }
+
+            @Override
+            public boolean handleHeadersComplete() {
+                tokens.add("complete");
+                return false;
+            }
+        };
+        final TokenState context = new TokenState();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, handler);
+        Assert.assertEquals(TokenState.PARSE_STOPPED, context.state);
+        Assert.assertEquals(Arrays.asList("GET", "/somepath", "HTTP/1.1", "X-Route=a", "Host=www.somehost.net"), tokens);
+
+        //the end of the headers is found without reading any of the body
+        final ByteBuffer buffer = ByteBuffer.wrap(in);
+        final TokenState completeContext = new TokenState();
+        final int remaining = parser.handle(buffer, in.length, completeContext, new HttpExchangeBuilder());
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, completeContext.state);
+        Assert.assertEquals(4, remaining);
+        Assert.assertEquals(in.length - 4, buffer.position());
+    }
+
+    @Test
+    public void testMaterializedHeaders() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES, new String[]{"Host", "X-Request-Id"});
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nCookie: a=b;\r\n c=d\r\nHost: www.somehost.net\r\nUser-Agent: ua\r\nX-Request-Id: 1\r\nX-Other: x\r\n\r\n".getBytes();
+        final TokenState context = new TokenState();
+
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, result);
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, context.state);
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals(2, result.standardHeaders.size());
+        Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        Assert.assertEquals("1", result.standardHeaders.get("X-Request-Id"));
+        Assert.assertTrue(result.otherHeaders.isEmpty());
+    }
+
+    @Test
+    public void testHpack() {
+        final HpackDecoder decoder = TokenizerGenerator.createHpackDecoder(VERBS, HEADER_VALUES);
+        final HpackState state = new HpackState();
+
+        //the Huffman encoded requests from RFC 7541 appendix C.4, which share a dynamic table
+        HttpExchangeBuilder result = decodeHpack(decoder, state, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals("/", result.path);
+        Assert.assertEquals("HTTP/2.0", result.httpVersion);
+        Assert.assertEquals("www.example.com", result.standardHeaders.get("Host"));
+
+        result = decodeHpack(decoder, state, "828684be5886a8eb10649cbf");
+        Assert.assertEquals("www.example.com", result.standardHeaders.get("Host"));
+        Assert.assertEquals("no-cache", result.standardHeaders.get("Cache-Control"));
+
+        result = decodeHpack(decoder, state, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals("/index.html", result.path);
+        Assert.assertEquals("www.example.com", result.standardHeaders.get("Host"));
+        Assert.assertEquals("custom-value", result.otherHeaders.get("custom-key"));
+        Assert.assertEquals(3, state.entries);
+        Assert.assertEquals(164, state.tableSize);
+    }
+
+    @Test
+    public void testHpackDynamicTable() {
+        final HpackDecoder decoder = TokenizerGenerator.createHpackDecoder(VERBS, HEADER_VALUES);
+        HpackState state = new HpackState();
+
+        //the requests from RFC 7541 appendix C.3, without Huffman coding
+        HttpExchangeBuilder result = decodeHpack(decoder, state, "828684410f7777772e6578616d706c652e636f6d");
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals("www.example.com", result.standardHeaders.get("Host"));
+        Assert.assertEquals(1, state.entries);
+        Assert.assertEquals(57, state.tableSize);
+        result = decodeHpack(decoder, state, "828684be58086e6f2d6361636865");
+        Assert.assertEquals("www.example.com", result.standardHeaders.get("Host"));
+        Assert.assertEquals("no-cache", result.standardHeaders.get("Cache-Control"));
+        Assert.assertEquals(2, state.entries);
+        Assert.assertEquals(110, state.tableSize);
+        result = decodeHpack(decoder, state, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+        Assert.assertEquals("/index.html", result.path);
+        Assert.assertEquals("custom-value", result.otherHeaders.get("custom-key"));
+        Assert.assertEquals(3, state.entries);
+        Assert.assertEquals(164, state.tableSize);
+
+        //a size update to zero empties the table, and it can then grow back to the limit
+        decodeHpack(decoder, state, "20");
+        Assert.assertEquals(0, state.entries);
+        Assert.assertEquals(0, state.tableSize);
+        decodeHpack(decoder, state, "3fe11f");
+        Assert.assertEquals(4096, state.maxTableSize);
+
+        //the responses from RFC 7541 appendix C.5, where the 256 byte table forces evictions
+        state = new HpackState(256);
+        result = decodeHpack(decoder, state, "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d");
+        Assert.assertEquals("private", result.standardHeaders.get("Cache-Control"));
+        Assert.assertEquals("https://www.example.com", result.standardHeaders.get("Location"));
+        Assert.assertEquals(4, state.entries);
+        Assert.assertEquals(222, state.tableSize);
+        result = decodeHpack(decoder, state, "4803333037c1c0bf");
+        Assert.assertEquals("private", result.standardHeaders.get("Cache-Control"));
+        Assert.assertEquals("https://www.example.com", result.standardHeaders.get("Location"));
+        Assert.assertEquals(4, state.entries);
+        Assert.assertEquals(222, state.tableSize);
+        result = decodeHpack(decoder, state, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b2076657273696f6e3d31");
+        Assert.assertEquals("private", result.standardHeaders.get("Cache-Control"));
+        Assert.assertEquals("gzip", result.standardHeaders.get("Content-Encoding"));
+        Assert.assertEquals("foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1", result.standardHeaders.get("Set-Cookie"));
+        Assert.assertEquals(3, state.entries);
+        Assert.assertEquals(215, state.tableSize);
+    }
+
+    @Test
+    public void testHpackErrors() {
+        final HpackDecoder decoder = TokenizerGenerator.createHpackDecoder(VERBS, HEADER_VALUES);
+        //index 0
+        assertHpackError(decoder, new HpackState(), "80");
+        //a dynamic table index when the table is empty
+        assertHpackError(decoder, new HpackState(), "be");
+        //an integer whose continuation bytes are missing
+        assertHpackError(decoder, new HpackState(), "ff");
+        assertHpackError(decoder, new HpackState(), "ff80");
+        //a string literal that is longer than the block
+        assertHpackError(decoder, new HpackState(), "40");
+        assertHpackError(decoder, new HpackState(), "4005616263");
+        //a size update above the limit that was sent in SETTINGS_HEADER_TABLE_SIZE
+        assertHpackError(decoder, new HpackState(256), "3fe201");
+    }
+
+    private static byte[] hex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void assertHpackError(final HpackDecoder decoder, final HpackState state, final String hex) {
+        try {
+            decodeHpack(decoder, state, hex);
+            Assert.fail(hex);
+        } catch (HpackException expected) {
+        }
+    }
+
+    private static HttpExchangeBuilder decodeHpack(final HpackDecoder decoder, final HpackState state, final String hex) {
+        final byte[] in = hex(hex);
+        final ByteBuffer buffer = ByteBuffer.wrap(in);
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        decoder.decode(buffer, in.length, state, result);
+        Assert.assertFalse(buffer.hasRemaining());
+        return result;
+    }
+
+    @Test
+    public void testSplitStateMachine() {
+        final int maxMethodSize = 2000;
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES, maxMethodSize);
+        final Map<String, Integer> sizes = ((TokenizerParent) parser).getMethodSizes();
+        Assert.assertTrue(sizes.containsKey("handleHeader$1"));
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            Assert.assertTrue(entry.toString(), entry.getValue() <= maxMethodSize);
+        }
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nHost: www.somehost.net\r\nStrict-Transport-Security: max-age=1\r\nHostname: b\r\n\r\n".getBytes();
+        final TokenState context = new TokenState();
+
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, result);
+        Assert.assertSame("GET", result.verb);
+        Assert.assertSame("HTTP/1.1", result.httpVersion);
+        Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        Assert.assertEquals("max-age=1", result.standardHeaders.get("Strict-Transport-Security"));
+        Assert.assertEquals("b", result.otherHeaders.get("Hostname"));
+    }
+
+    @Test
+    public void testDiagnostics() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES, null, 2000, true);
+        final TokenizerDiagnostics diagnostics = TokenizerGenerator.getDiagnostics(parser);
+        final TokenizerDiagnostics.StateMachine verbs = diagnostics.getStateMachines().get(TokenizerGenerator.HANDLE_HTTP_VERB);
+        //the initial state and P, with prefix matches for GET, POST and PUT
+        Assert.assertEquals(2, verbs.getStates());
+        Assert.assertEquals(3, verbs.getPrefixMatchStates());
+        Assert.assertTrue(verbs.getDot().contains("label=\"POST\""));
+        final TokenizerDiagnostics.StateMachine headers = diagnostics.getStateMachines().get(TokenizerGenerator.HANDLE_HEADER);
+        Assert.assertTrue(headers.getMethods().contains("handleHeader$1"));
+        for (final String method : headers.getMethods()) {
+            Assert.assertTrue(diagnostics.getMethodSizes().containsKey(method));
+        }
+        Assert.assertEquals(0xCAFEBABE, ByteBuffer.wrap(diagnostics.getClassBytes()).getInt());
+        Assert.assertEquals(diagnostics.getClassSize(), diagnostics.getClassBytes().length);
+
+        //without detailed diagnostics only the summary is kept
+        final TokenizerDiagnostics summary = TokenizerGenerator.getDiagnostics(TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES));
+        Assert.assertNull(summary.getClassBytes());
+        Assert.assertNull(summary.getStateMachines().get(TokenizerGenerator.HANDLE_HTTP_VERB).getDot());
+        Assert.assertEquals(2, summary.getStateMachines().get(TokenizerGenerator.HANDLE_HTTP_VERB).getStates());
+        Assert.assertTrue(summary.getClassSize() > 0);
+        Assert.assertNull(TokenizerGenerator.getDiagnostics(TokenizerGenerator.createInterpretedTokenizer(VERBS, VERSIONS, HEADER_VALUES)));
+    }
+
+    @Test
+    public void testProxyRequestHead() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        final String head = "GET /somepath HTTP/1.1\r\nHost: internal\r\nX-Forwarded-For: 10.0.0.1\r\nX-Long: a\r\n b\r\nAccept: */*\r\n\r\n";
+        byte[] in = (head + "body").getBytes();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(in.length);
+        buffer.put(in);
+        buffer.flip();
+        final TokenState context = new TokenState();
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        final ProxyRequestHead proxyHead = new ProxyRequestHead();
+        proxyHead.parse(parser, buffer, 30, context, result);
+        proxyHead.parse(parser, buffer, 40, context, result);
+        Assert.assertEquals(4, proxyHead.parse(parser, buffer, buffer.remaining(), context, result));
+        Assert.assertEquals(head.length(), proxyHead.getLength());
+
+        //unchanged heads are passed on as they are
+        Assert.assertEquals(head, toString(proxyHead.getBuffers()));
+        Assert.assertEquals("a b", proxyHead.getHeader("x-long"));
+
+        proxyHead.setHeader("X-Forwarded-For", proxyHead.getHeader("X-Forwarded-For") + ", 10.0.0.2");
+        proxyHead.setHeader("Via", "1.1 proxy");
+        proxyHead.removeHeader("X-Long");
+        final ByteBuffer[] buffers = proxyHead.getBuffers();
+        Assert.assertEquals("GET /somepath HTTP/1.1\r\nHost: internal\r\nX-Forwarded-For: 10.0.0.1, 10.0.0.2\r\nAccept: */*\r\nVia: 1.1 proxy\r\n\r\n", toString(buffers));
+        Assert.assertTrue(buffers[0].isDirect());
+
+        //values built from client data must not be able to split the forwarded request
+        assertInvalidHeader(proxyHead, "X-Forwarded-For", "10.0.0.1\r\nX-Admin: true");
+        assertInvalidHeader(proxyHead, "X-Forwarded-For", "10.0.0.1\n");
+        assertInvalidHeader(proxyHead, "X-Forwarded-For", "10.0.0.1\u0000");
+        assertInvalidHeader(proxyHead, "X-Forwarded-For", "\u20ac");
+        assertInvalidHeader(proxyHead, "X-Forwarded-For:", "a");
+        assertInvalidHeader(proxyHead, "X Forwarded", "a");
+        assertInvalidHeader(proxyHead, "", "a");
+        Assert.assertEquals("GET /somepath HTTP/1.1\r\nHost: internal\r\nX-Forwarded-For: 10.0.0.1, 10.0.0.2\r\nAccept: */*\r\nVia: 1.1 proxy\r\n\r\n", toString(proxyHead.getBuffers()));
+        proxyHead.setHeader("X-Name", "caf\u00e9");
+        Assert.assertTrue(toString(proxyHead.getBuffers()).contains("X-Name: caf\u00e9\r\n"));
+    }
+
+    private static void assertInvalidHeader(final ProxyRequestHead proxyHead, final String name, final String value) {
+        try {
+            proxyHead.setHeader(name, value);
+            Assert.fail(name + ": " + value);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String toString(final ByteBuffer[] buffers) {
+        final StringBuilder sb = new StringBuilder();
+        for (final ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                sb.append((char) (buffer.get() & 0xFF));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testInterpretedTokenizer() {
+        final Tokenizer parser = TokenizerGenerator.createInterpretedTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nHost: www.somehost.net\r\nHostname: b\r\nSet-Cookie: c\r\n\r\n".getBytes();
+        final TokenState context = new TokenState();
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        //split in the middle of the Host header, so the interpreter has to resume part way through the trie
+        final ByteBuffer buffer = ByteBuffer.wrap(in);
+        Assert.assertEquals(0, parser.handle(buffer, 26, context, result));
+        parser.handle(buffer, in.length - 26, context, result);
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals("/somepath", result.path);
+        Assert.assertSame("HTTP/1.1", result.httpVersion);
+        Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        Assert.assertEquals("c", result.standardHeaders.get("Set-Cookie"));
+        Assert.assertEquals("b", result.otherHeaders.get("Hostname"));
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, context.state);
+    }
+
+    @Test
+    public void testTracingTokenizer() {
+        final List<String> traces = new ArrayList<String>();
+        final TracingTokenizer parser = new TracingTokenizer(TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES), new ParseTraceListener() {
+            @Override
+            public void requestTraced(final ParseTrace trace) {
+                Assert.assertTrue(trace.getFirstByte() <= trace.getRequestLineComplete());
+                Assert.assertTrue(trace.getRequestLineComplete() <= trace.getHeadersComplete());
+                Assert.assertTrue(trace.getHeadersComplete() <= trace.getDispatched());
+                traces.add("fragments=" + trace.getFragments());
+            }
+        });
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nHost: www.somehost.net\r\n\r\n".getBytes();
+        final TokenState context = new TokenState();
+        HttpExchangeBuilder result = new HttpExchangeBuilder();
+        final ByteBuffer buffer = ByteBuffer.wrap(in);
+        parser.handle(buffer, 10, context, result);
+        parser.handle(buffer, 20, context, result);
+        parser.handle(buffer, in.length - 30, context, result);
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, context.state);
+        Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        parser.dispatched(context);
+        Assert.assertEquals(Arrays.asList("fragments=3"), traces);
+        Assert.assertEquals(0, context.trace.getFragments());
+
+        //the trace is reused for the next request on the connection
+        final ParseTrace trace = context.trace;
+        context.reset();
+        parser.handle(ByteBuffer.wrap(in), in.length, context, new HttpExchangeBuilder());
+        Assert.assertSame(trace, context.trace);
+        parser.dispatched(context);
+        Assert.assertEquals(Arrays.asList("fragments=3", "fragments=1"), traces);
+    }
+
+    @Test
+    public void testTieredTokenizer() {
+        final Executor sameThread = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+        final TieredTokenizer parser = (TieredTokenizer) TokenizerGenerator.createTieredTokenizer(VERBS, VERSIONS, HEADER_VALUES, null, 2, sameThread);
+
+        byte[] in = "GET /somepath HTTP/1.1\r\nHost: www.somehost.net\r\n\r\n".getBytes();
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(i == 2, parser.isPromoted());
+            final TokenState context = new TokenState();
+            HttpExchangeBuilder result = new HttpExchangeBuilder();
+            final ByteBuffer buffer = ByteBuffer.wrap(in);
+            parser.handle(buffer, 27, context, result);
+            parser.handle(buffer, in.length - 27, context, result);
+            Assert.assertSame("GET", result.verb);
+            Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        }
+
+        //a rejected promotion is tried again once another promotionThreshold requests have been seen
+        final AtomicInteger attempts = new AtomicInteger();
+        final Executor rejectFirst = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        };
+        final TieredTokenizer retried = (TieredTokenizer) TokenizerGenerator.createTieredTokenizer(VERBS, VERSIONS, HEADER_VALUES, null, 2, rejectFirst);
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertEquals(i == 4, retried.isPromoted());
+            final HttpExchangeBuilder result = new HttpExchangeBuilder();
+            retried.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+            Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        }
+        Assert.assertEquals(2, attempts.get());
+
+        //once promoted a request split at any point, including part way through a token that the generated
+        //tokenizer started, parses exactly as it does with the generated tokenizer alone
+        final String[][] materialized = {null, {"Host", "Cookie", "Content-Length"}};
+        for (final String[] headers : materialized) {
+            final Tokenizer generated = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES, headers);
+            final TieredTokenizer tiered = (TieredTokenizer) TokenizerGenerator.createTieredTokenizer(VERBS, VERSIONS, HEADER_VALUES, headers, 3, sameThread);
+            for (int i = 0; i < 3; ++i) {
+                tiered.handle(ByteBuffer.wrap(in), in.length, new TokenState(), new HttpExchangeBuilder());
+            }
+            Assert.assertTrue(tiered.isPromoted());
+            for (final String request : TokenizerBenchmark.MIXED_TRAFFIC) {
+                final byte[] bytes = request.getBytes();
+                final String expected = describe(generated, bytes, 0);
+                for (int split = 1; split < bytes.length; ++split) {
+                    Assert.assertEquals("split at " + split, expected, describe(tiered, bytes, split));
+                }
+            }
+        }
+    }
+
+    private static String describe(final Tokenizer parser, final byte[] bytes, final int split) {
+        final TokenState context = new TokenState();
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        parser.handle(buffer, split, context, result);
+        parser.handle(buffer, bytes.length - split, context, result);
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, context.state);
+        return result.verb + " " + result.path + " " + result.httpVersion + " " + new TreeMap<String, String>(result.standardHeaders) + " " + new TreeMap<String, String>(result.otherHeaders);
+    }
+
+
+    @Test
+    public void testAccessLog() throws IOException {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+        final File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+        //small enough that the log has to wrap around twice
+        final AccessLog log = new AccessLog(file, 260, 16);
+        for (int i = 0; i < 10; ++i) {
+            byte[] in = ("GET /path" + i + " HTTP/1.1\r\nHost: www.somehost.net\r\n\r\n").getBytes();
+            HttpExchangeBuilder result = new HttpExchangeBuilder();
+            parser.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+            //the queue is larger than the number of requests, so nothing can be dropped
+            Assert.assertTrue(log.log(result));
+        }
+        log.close();
+        Assert.assertEquals(0, log.getDropped());
+        //once closed the writer has stopped, so nothing more is accepted
+        final byte[] late = "GET /late HTTP/1.1\r\n\r\n".getBytes();
+        final HttpExchangeBuilder lateRequest = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(late), late.length, new TokenState(), lateRequest);
+        Assert.assertFalse(log.log(lateRequest));
+        Assert.assertEquals(1, log.getDropped());
+        Assert.assertEquals(260, file.length());
+        final String contents = new String(Files.readAllBytes(file.toPath()), "ISO-8859-1");
+        //each line is 51 bytes, but room is kept for a 19 digit time, so four fit in a pass
+        final int end = contents.indexOf('\u0000');
+        final String[] newest = contents.substring(0, end).split("\n");
+        Assert.assertEquals(2, newest.length);
+        Assert.assertTrue(newest[0], newest[0].matches("\\d+ GET /path8 HTTP/1.1 www.somehost.net"));
+        Assert.assertTrue(newest[1], newest[1].matches("\\d+ GET /path9 HTTP/1.1 www.somehost.net"));
+        //followed by what is left of the previous pass, the first record of which has been partially overwritten
+        final String[] older = contents.substring(end + 1, contents.indexOf('\u0000', end + 1)).split("\n");
+        Assert.assertEquals(2, older.length);
+        Assert.assertTrue(older[0], older[0].endsWith(" GET /path6 HTTP/1.1 www.somehost.net"));
+        Assert.assertTrue(older[1], older[1].matches("\\d+ GET /path7 HTTP/1.1 www.somehost.net"));
+    }
+
+    @Test
+    public void testTrafficCapture() throws IOException {
+        final File file = File.createTempFile("traffic", ".capture");
+        file.deleteOnExit();
+        final byte[] first = "POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /b HTTP/1.1\r\nHost: a\r\n\r\n".getBytes();
+        final byte[] second = "GET /c HTTP/1.0\r\nX-Custom: value\r\n\r\n".getBytes();
+        final TrafficCapture capture = new TrafficCapture(file, 4096);
+        //interleave the two connections, with the first one read a few bytes at a time
+        int fragments = 0;
+        for (int i = 0; i < first.length; i += 7) {
+            final ByteBuffer buffer = ByteBuffer.wrap(first);
+            buffer.position(i);
+            Assert.assertTrue(capture.capture(1, buffer, Math.min(7, first.length - i)));
+            Assert.assertEquals(i, buffer.position());
+            if (fragments++ == 2) {
+                Assert.assertTrue(capture.capture(2, ByteBuffer.wrap(second), second.length));
+                ++fragments;
+            }
+        }
+        Assert.assertFalse(capture.capture(3, ByteBuffer.allocate(4096), 4096));
+        capture.close();
+
+        final List<TrafficCapture.Fragment> read = TrafficCapture.read(file);
+        Assert.assertEquals(fragments, read.size());
+        Assert.assertEquals(2, read.get(3).getConnection());
+        Assert.assertEquals(ByteBuffer.wrap(second), read.get(3).getBytes());
+
+        final TrafficReplay.Replay replay = new TrafficReplay.Replay(TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES), read);
+        replay.pass();
+        replay.pass();
+        Assert.assertEquals(6, replay.requests);
+        Assert.assertEquals(2 * (first.length + second.length), replay.bytes);
+    }
+
+    @Test
+    public void testStaticFileHandler() throws IOException {
+        final File root = File.createTempFile("static", "");
+        Assert.assertTrue(root.delete() && root.mkdir());
+        final File file = new File(root, "index.html");
+        Files.write(file.toPath(), "0123456789".getBytes());
+        root.deleteOnExit();
+        file.deleteOnExit();
+        final StaticFileHandler handler = new StaticFileHandler(root, 10);
+
+        StaticFileHandler.Response response = serve(handler, "GET /index.html?x=1 HTTP/1.1\r\n\r\n");
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(10, response.getRemaining());
+        final String headers = StandardCharsets.ISO_8859_1.decode(response.getHeaders()).toString();
+        Assert.assertTrue(headers, headers.contains("Content-Length: 10\r\n"));
+        final String etag = headers.substring(headers.indexOf("ETag: ") + 6, headers.indexOf("\r\n", headers.indexOf("ETag: ")));
+        final String lastModified = headers.substring(headers.indexOf("Last-Modified: ") + 15, headers.indexOf("\r\n", headers.indexOf("Last-Modified: ")));
+        response.close();
+
+        response = serve(handler, "HEAD /index.html HTTP/1.1\r\n\r\n");
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(0, response.getRemaining());
+
+        response = serve(handler, "GET /index.html HTTP/1.1\r\nRange: bytes=2-4\r\n\r\n");
+        Assert.assertEquals(206, response.getStatus());
+        Assert.assertEquals(3, response.getRemaining());
+        Assert.assertTrue(StandardCharsets.ISO_8859_1.decode(response.getHeaders()).toString().contains("Content-Range: bytes 2-4/10\r\n"));
+        response.close();
+
+        Assert.assertEquals(7, serve(handler, "GET /index.html HTTP/1.1\r\nRange: bytes=3-\r\n\r\n").getRemaining());
+        Assert.assertEquals(4, serve(handler, "GET /index.html HTTP/1.1\r\nRange: bytes=-4\r\n\r\n").getRemaining());
+        Assert.assertEquals(416, serve(handler, "GET /index.html HTTP/1.1\r\nRange: bytes=10-\r\n\r\n").getStatus());
+        Assert.assertEquals(304, serve(handler, "GET /index.html HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n").getStatus());
+        Assert.assertEquals(200, serve(handler, "GET /index.html HTTP/1.1\r\nIf-None-Match: \"other\"\r\n\r\n").getStatus());
+        Assert.assertEquals(304, serve(handler, "GET /index.html HTTP/1.1\r\nIf-Modified-Since: " + lastModified + "\r\n\r\n").getStatus());
+        Assert.assertEquals(404, serve(handler, "GET /missing.html HTTP/1.1\r\n\r\n").getStatus());
+        Assert.assertEquals(400, serve(handler, "GET /../index.html HTTP/1.1\r\n\r\n").getStatus());
+        Assert.assertEquals(405, serve(handler, "POST /index.html HTTP/1.1\r\n\r\n").getStatus());
+        handler.close();
+    }
+
+    private static StaticFileHandler.Response serve(final StaticFileHandler handler, final String request) throws IOException {
+        final Tokenizer parser = TokenizerGenerator.createInterpretedTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+        final byte[] in = request.getBytes();
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+        return handler.handle(result);
+    }
+
+    @Test
+    public void testResponseCache() {
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+        //the names do not have to be the instances the tokenizer was configured with
+        final ResponseCache cache = new ResponseCache(VERBS, HEADER_VALUES, new String[]{new String("accept-encoding"), "X-Tenant"}, 1000);
+        final ByteBuffer response = ByteBuffer.wrap("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes());
+
+        final HttpExchangeBuilder gzip = parse(parser, "GET /a HTTP/1.1\r\nAccept-Encoding: gzip\r\nX-Tenant: t1\r\n\r\n");
+        Assert.assertNull(cache.get(gzip));
+        cache.put(gzip, response, 60000);
+        Assert.assertEquals(0, response.position());
+        Assert.assertEquals(response, cache.get(gzip));
+        Assert.assertEquals(response, cache.get(parse(parser, "GET /a HTTP/1.1\r\nX-Tenant: t1\r\nAccept-Encoding: gzip\r\nCookie: c\r\n\r\n")));
+        Assert.assertNull(cache.get(parse(parser, "GET /a HTTP/1.1\r\nAccept-Encoding: gzip\r\nX-Tenant: t2\r\n\r\n")));
+        Assert.assertNull(cache.get(parse(parser, "GET /a HTTP/1.1\r\nX-Tenant: t1\r\n\r\n")));
+        Assert.assertNull(cache.get(parse(parser, "POST /a HTTP/1.1\r\nAccept-Encoding: gzip\r\nX-Tenant: t1\r\n\r\n")));
+
+        //a verb the tokenizer does not know is never cached
+        final HttpExchangeBuilder unknownVerb = parse(parser, "PURGE /a HTTP/1.1\r\n\r\n");
+        final long size = cache.getSize();
+        cache.put(unknownVerb, response, 60000);
+        Assert.assertEquals(size, cache.getSize());
+        Assert.assertNull(cache.get(unknownVerb));
+
+        //expired entries are not served
+        final HttpExchangeBuilder plain = parse(parser, "GET /a HTTP/1.1\r\n\r\n");
+        cache.put(plain, response, 0);
+        Assert.assertNull(cache.get(plain));
+        Assert.assertNotNull(cache.get(gzip));
+
+        //the oldest entries are evicted once the cache is full
+        for (int i = 0; i < 20; ++i) {
+            cache.put(parse(parser, "GET /b" + i + " HTTP/1.1\r\n\r\n"), response, 60000);
+            Assert.assertTrue(cache.getSize() <= 1000);
+        }
+        Assert.assertNull(cache.get(gzip));
+        Assert.assertNotNull(cache.get(parse(parser, "GET /b19 HTTP/1.1\r\n\r\n")));
+        cache.invalidate("/b19");
+        Assert.assertNull(cache.get(parse(parser, "GET /b19 HTTP/1.1\r\n\r\n")));
+
+        //neither the tokenizer nor the cache need the configuration to be interned
+        final String[] verbs = new String[VERBS.length];
+        for (int i = 0; i < verbs.length; ++i) {
+            verbs[i] = new String(VERBS[i]);
+        }
+        final String[] headers = new String[HEADER_VALUES.length];
+        for (int i = 0; i < headers.length; ++i) {
+            headers[i] = new String(HEADER_VALUES[i]);
+        }
+        final Tokenizer copiedParser = TokenizerGenerator.createTokenizer(verbs, VERSIONS, headers);
+        final ResponseCache copiedCache = new ResponseCache(verbs, headers, new String[]{new String("Accept-Encoding")}, 1000);
+        final HttpExchangeBuilder copiedRequest = parse(copiedParser, "GET /c HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+        copiedCache.put(copiedRequest, response, 60000);
+        Assert.assertEquals(response, copiedCache.get(copiedRequest));
+        Assert.assertNull(copiedCache.get(parse(copiedParser, "GET /c HTTP/1.1\r\nAccept-Encoding: br\r\n\r\n")));
+    }
+
+    private static HttpExchangeBuilder parse(final Tokenizer parser, final String request) {
+        final byte[] in = request.getBytes();
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        parser.handle(ByteBuffer.wrap(in), in.length, new TokenState(), result);
+        return result;
+    }
+
+    @Test
+    public void testMultipartParser() {
+        final String boundary = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+        Assert.assertEquals(boundary, MultipartParser.getBoundary("multipart/form-data; boundary=" + boundary));
+        Assert.assertEquals("a b.txt", MultipartParser.getParameter("form-data; name=\"file\"; filename=\"a b.txt\"", "filename"));
+        final String body = "preamble\r\n--" + boundary + "\r\n" +
+                //header names are not case sensitive
+                "content-disposition: form-data; name=\"field\"\r\n\r\n" +
+                "value\r\n--" + boundary + "  \r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\nContent-type: text/plain\r\nX-Other: x\r\n\r\n" +
+                "line\r\n--" + boundary.substring(0, 10) + "\r\n\r\n--\r\r\n-\r\n--" + boundary + "\r\n" +
+                "\r\n" +
+                "no headers\r\n--" + boundary + "--\r\nepilogue";
+        final String expected = "[form-data; name=\"field\"|null|value]" +
+                "[form-data; name=\"file\"; filename=\"a.txt\"|text/plain|line\r\n--" + boundary.substring(0, 10) + "\r\n\r\n--\r\r\n-]" +
+                "[null|null|no headers]";
+        final byte[] bytes = body.getBytes();
+        for (int split = 0; split <= bytes.length; ++split) {
+            final StringBuilder result = new StringBuilder();
+            final MultipartParser parser = new MultipartParser(boundary, new MultipartHandler() {
+                @Override
+                public void beginPart(final String contentDisposition, final String contentType) {
+                    result.append('[').append(contentDisposition).append('|').append(contentType).append('|');
+                }
+
+                @Override
+                public void data(final ByteBuffer data) {
+                    result.append(StandardCharsets.ISO_8859_1.decode(data));
+                }
+
+                @Override
+                public void endPart() {
+                    result.append(']');
+                }
+            });
+            //a direct buffer for the first half, and a heap buffer for the rest
+            final ByteBuffer first = ByteBuffer.allocateDirect(split);
+            first.put(bytes, 0, split);
+            first.flip();
+            parser.parse(first);
+            parser.parse(ByteBuffer.wrap(bytes, split, bytes.length - split));
+            Assert.assertTrue(parser.isComplete());
+            Assert.assertEquals("split at " + split, expected, result.toString());
+        }
+    }
 
+    @Test
+    public void testFormDecoder() {
+        final byte[] body = "user=j%C3%B6rg&pass=a+b%26c%3D&&first%20name=J&flag&q=100%&q=second&".getBytes();
+        final FormDecoder decoder = new FormDecoder();
+        for (int split = 0; split <= body.length; ++split) {
+            decoder.reset();
+            decoder.parse(ByteBuffer.wrap(body, 0, split));
+            decoder.parse(ByteBuffer.wrap(body, split, body.length - split));
+            Assert.assertEquals(6, decoder.getFieldCount());
+            Assert.assertEquals("j\u00f6rg", decoder.getFirst("user"));
+            Assert.assertEquals("a b&c=", decoder.getFirst("pass"));
+            Assert.assertEquals("J", decoder.getFirst("first name"));
+            Assert.assertEquals("", decoder.getFirst("flag"));
+            Assert.assertEquals("100%", decoder.getFirst("q"));
+            Assert.assertNull(decoder.getFirst("first"));
+            Assert.assertEquals("first name", decoder.getName(2));
+            Assert.assertEquals("second", decoder.getValue(5));
+        }
+
+        //the last field can be read before the body is complete
+        decoder.reset();
+        decoder.parse(ByteBuffer.wrap("a=1&b=2".getBytes()));
+        Assert.assertEquals(2, decoder.getFieldCount());
+        Assert.assertEquals("2", decoder.getFirst("b"));
+        decoder.parse(ByteBuffer.wrap("3".getBytes()));
+        Assert.assertEquals("23", decoder.getFirst("b"));
+    }
+
+    @Test
+    public void testTimerWheel() {
+        final TimerWheel wheel = new TimerWheel(10, 8, 1000);
+        final List<String> fired = new ArrayList<String>();
+        final TimerWheel.Timeout a = new TimerWheel.Timeout() {
+            @Override
+            protected void expired(final long now) {
+                fired.add("a@" + now);
+            }
+        };
+        final TimerWheel.Timeout b = new TimerWheel.Timeout() {
+            @Override
+            protected void expired(final long now) {
+                fired.add("b@" + now);
+                //more than a turn of the wheel away
+                wheel.schedule(this, now + 500);
+            }
+        };
+        wheel.schedule(a, 1025);
+        wheel.schedule(b, 1030);
+        wheel.schedule(a, 1050);
+        Assert.assertEquals(0, wheel.expire(1029));
+        Assert.assertEquals(1, wheel.expire(1049));
+        Assert.assertEquals(1, wheel.expire(1050));
+        Assert.assertFalse(a.isScheduled());
+        Assert.assertTrue(b.isScheduled());
+        Assert.assertEquals(0, wheel.expire(1548));
+        Assert.assertEquals(1, wheel.expire(5000));
+        Assert.assertEquals(Arrays.asList("b@1049", "a@1050", "b@5000"), fired);
+
+        //a slow client that trickles its request head in is timed out even though it keeps reading
+        final TokenState state = new TokenState();
+        final List<Integer> timedOut = new ArrayList<Integer>();
+        final ConnectionTimeout timeout = new ConnectionTimeout(wheel, state, 60000, 1000, 300) {
+            @Override
+            protected void timedOut(final int kind) {
+                timedOut.add(kind);
+            }
+        };
+        timeout.idle(5000);
+        wheel.expire(6000);
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+        final byte[] request = "GET / HTTP/1.1\r\nHost: a\r\n\r\n".getBytes();
+        int now = 6000;
+        for (int i = 0; timedOut.isEmpty(); ++i, now += 100) {
+            parser.handle(ByteBuffer.wrap(request, i, 1), 1, state, new HttpExchangeBuilder());
+            timeout.bytesRead(now);
+            wheel.expire(now);
+        }
+        Assert.assertEquals(Arrays.asList(ConnectionTimeout.HEADERS), timedOut);
+        Assert.assertEquals(7100, now);
+        Assert.assertTrue(state.state != TokenState.PARSE_COMPLETE);
+
+        //once the head is complete only the read timeout applies, and after the response the idle timeout
+        timedOut.clear();
+        state.reset();
+        timeout.idle(now);
+        parser.handle(ByteBuffer.wrap(request), request.length, state, new HttpExchangeBuilder());
+        timeout.bytesRead(now);
+        wheel.expire(now + 250);
+        timeout.cancel();
+        wheel.expire(now + 5000);
+        Assert.assertTrue(timedOut.isEmpty());
+        timeout.bytesRead(now + 5000);
+        wheel.expire(now + 5400);
+        Assert.assertEquals(Arrays.asList(ConnectionTimeout.READ), timedOut);
+        state.reset();
+        timeout.idle(now + 6000);
+        wheel.expire(now + 65000);
+        Assert.assertEquals(Arrays.asList(ConnectionTimeout.READ), timedOut);
+        wheel.expire(now + 66000);
+        Assert.assertEquals(Arrays.asList(ConnectionTimeout.READ, ConnectionTimeout.IDLE), timedOut);
+    }
+
+    @Test
+    public void testBufferPool() throws Exception {
+        final List<Throwable> leaks = new ArrayList<Throwable>();
+        final BufferPool pool = new BufferPool(1024, 16, 4, true) {
+            @Override
+            protected void leakDetected(final Throwable allocated) {
+                leaks.add(allocated);
+            }
+        };
+        BufferPool.PooledBuffer buffer = pool.allocate();
+        Assert.assertTrue(buffer.getBuffer().isDirect());
+        Assert.assertEquals(1024, buffer.getBuffer().remaining());
+        buffer.getBuffer().put((byte) 1);
+        buffer.retain();
+        buffer.release();
+        final ByteBuffer first = buffer.getBuffer();
+        buffer.release();
+        try {
+            buffer.release();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        //the buffer comes straight back from the thread's cache, cleared
+        buffer = pool.allocate();
+        Assert.assertSame(first, buffer.getBuffer());
+        Assert.assertEquals(0, buffer.getBuffer().position());
+        buffer.release();
+
+        //buffers that are released on another thread go to the shared pool once that thread's cache is full
+        final BufferPool.PooledBuffer[] allocated = new BufferPool.PooledBuffer[16];
+        for (int i = 0; i < allocated.length; ++i) {
+            allocated[i] = pool.allocate();
+        }
+        Assert.assertEquals(1, pool.getSlabCount());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (BufferPool.PooledBuffer b : allocated) {
+                    b.release();
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        for (int i = 0; i < allocated.length; ++i) {
+            allocated[i] = pool.allocate();
+        }
+        Assert.assertTrue(pool.getSlabCount() < 3);
+
+        //a buffer that is never released is found once it has been collected
+        allocated[0] = null;
+        for (int i = 0; i < 100 && pool.getLeakCount() == 0; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, pool.getLeakCount());
+        Assert.assertEquals(1, leaks.size());
+    }
+
+    @Test
+    public void testDispatcher() throws Exception {
+        final AtomicInteger suspended = new AtomicInteger();
+        final AtomicInteger resumed = new AtomicInteger();
+        final SuspendableReadChannel channel = (SuspendableReadChannel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{SuspendableReadChannel.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("suspendReads")) {
+                    suspended.incrementAndGet();
+                } else if (method.getName().equals("resumeReads")) {
+                    resumed.incrementAndGet();
+                }
+                return null;
+            }
+        });
+        //the drain tasks are held back until everything has been dispatched, as if the workers were busy
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        final List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+        final Dispatcher<Integer> dispatcher = new Dispatcher<Integer>(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                tasks.add(command);
+            }
+        }, new DispatchHandler<Integer>() {
+            @Override
+            public void handle(final Integer request) {
+                handled.add(request);
+            }
+        }, 8, 4, 2);
+        for (int i = 0; i < 20; ++i) {
+            dispatcher.dispatch(i, channel);
+        }
+        //reads are suspended once the queue is three quarters full, and then it overflows
+        Assert.assertTrue(suspended.get() > 0);
+        Assert.assertEquals(0, resumed.get());
+        Assert.assertEquals(20, dispatcher.getQueued());
+        //there is one drain task per worker, not one per request
+        Assert.assertEquals(2, tasks.size());
+
+        final Thread[] workers = new Thread[tasks.size()];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(tasks.get(i));
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertEquals(2, tasks.size());
+        Assert.assertEquals(20, handled.size());
+        Assert.assertEquals(0, dispatcher.getQueued());
+        Assert.assertEquals(suspended.get(), resumed.get());
+
+        //a rejected drain task or a handler that throws an error must not use up a drain slot for good
+        final AtomicInteger executed = new AtomicInteger();
+        final List<Integer> handledInline = new ArrayList<Integer>();
+        final Dispatcher<Integer> failing = new Dispatcher<Integer>(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (executed.incrementAndGet() == 1) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        }, new DispatchHandler<Integer>() {
+            @Override
+            public void handle(final Integer request) {
+                if (request == 1) {
+                    throw new Error("request 1");
+                }
+                handledInline.add(request);
+            }
+        }, 8, 4, 1);
+        final List<Throwable> uncaught = new ArrayList<Throwable>();
+        final Thread thread = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(final Thread t, final Throwable e) {
+                uncaught.add(e);
+            }
+        });
+        try {
+            try {
+                failing.dispatch(0, channel);
+                Assert.fail();
+            } catch (RejectedExecutionException expected) {
+            }
+            failing.dispatch(1, channel);
+            failing.dispatch(2, channel);
+        } finally {
+            thread.setUncaughtExceptionHandler(previous);
+        }
+        Assert.assertEquals(Arrays.asList(0, 2), handledInline);
+        Assert.assertEquals(1, uncaught.size());
+        Assert.assertEquals(0, failing.getQueued());
+    }
+
+    /**
+     * A self signed EC key and certificate for CN=localhost that is valid for 100 years, in a JKS key store with the
+     * password <code>password</code>. Created with
+     * <code>keytool -genkeypair -keyalg EC -groupname secp256r1 -validity 36500 -storetype JKS</code>.
+     */
+    private static final String TEST_KEY_STORE =
+            "feedfeed00000002000000010000000100096c6f63616c686f7374000001a15279205e0000007f307d300e060a2b060104012a02" +
+            "1101010500046bc6923e4cdde8ed140b3e7840996585d2b5f63a781795a80c965f5bc73ed0eae0a7efcf0cc162fb8b2f58c56164" +
+            "7d90c819357b00f784b942a9ce23c834a6c7f11e9456d48b1ff9555322bdfea04966935b09e06ce496f743a7aead5d796640cf6b" +
+            "a2210c112fa8dcc19d9e000000010005582e35303900000145308201413081e8a003020102020900b8252e9d113db8a2300a0608" +
+            "2a8648ce3d040302301431123010060355040313096c6f63616c686f73743020170d3236313031393034343335325a180f323132" +
+            "36303932353034343335325a301431123010060355040313096c6f63616c686f73743059301306072a8648ce3d020106082a8648" +
+            "ce3d030107034200044d46e60e583aa53399bea2526d7ee638d8f7364a301c05d998f7ccf4c91cf0f01cbb1ffbfa38a14c0f79e4" +
+            "19a332a639362f3a9482c7b1c0e6394d5d615d6bcfa321301f301d0603551d0e04160414ca5271756b8737200ab48293f55342a2" +
+            "17814c07300a06082a8648ce3d0403020348003045022100d60c7703dd2d6b2e9c6ea6480d40d11ac9997773aff8b342d471d125" +
+            "1e45bb6e0220534c59ec2a3d37befe16e90d2c33961b43c2b1ab465d090776830727703fdd42e282a572db62777b02837b2c9a50" +
+            "b73f34fa4235";
+
+    @Test
+    public void testSslConnection() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(new ByteArrayInputStream(hex(TEST_KEY_STORE)), "password".toCharArray());
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "password".toCharArray());
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        final SSLEngine serverEngine = context.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        final SSLEngine clientEngine = context.createSSLEngine("localhost", 443);
+        clientEngine.setUseClientMode(true);
+
+        final BufferPool pool = new BufferPool(32 * 1024, 8, 4, false);
+        final Wire toServer = new Wire();
+        final Wire toClient = new Wire();
+        final SslConnection server = new SslConnection(serverEngine, pool, new WireChannel(toServer, toClient));
+        final SslConnection client = new SslConnection(clientEngine, pool, new WireChannel(toClient, toServer));
+
+        //the request is written in three parts, so it is sent in at least three records
+        final Tokenizer parser = TokenizerGenerator.createTokenizer(VERBS, VERSIONS, HEADER_VALUES);
+        final String request = "GET /somepath HTTP/1.1\r\nHost: www.somehost.net\r\nX-Custom: value\r\n\r\n";
+        final ByteBuffer[] parts = {
+                ByteBuffer.wrap(request.substring(0, 10).getBytes()),
+                ByteBuffer.wrap(request.substring(10, 40).getBytes()),
+                ByteBuffer.wrap(request.substring(40).getBytes())};
+        final TokenState state = new TokenState();
+        final HttpExchangeBuilder result = new HttpExchangeBuilder();
+        int written = 0;
+        int plaintextBuffers = 0;
+        //the handshake is driven by the same calls, and the ciphertext is delivered alternately up to the end of
+        //the next record and half way through it
+        for (int i = 0; i < 1000 && state.state != TokenState.PARSE_COMPLETE; ++i) {
+            if (written < parts.length && client.write(parts[written])) {
+                ++written;
+            }
+            toServer.deliver(i % 2 == 1);
+            BufferPool.PooledBuffer plaintext;
+            while ((plaintext = server.read()) != null) {
+                final ByteBuffer buffer = plaintext.getBuffer();
+                Assert.assertTrue(buffer.isDirect());
+                Assert.assertEquals(0, parser.handle(buffer, buffer.remaining(), state, result));
+                plaintext.release();
+                ++plaintextBuffers;
+            }
+            Assert.assertTrue(server.flush());
+            toClient.deliver(i % 2 == 1);
+            Assert.assertNull(client.read());
+        }
+        Assert.assertEquals(TokenState.PARSE_COMPLETE, state.state);
+        Assert.assertTrue(plaintextBuffers > 1);
+        Assert.assertSame("GET", result.verb);
+        Assert.assertEquals("/somepath", result.path);
+        Assert.assertEquals("www.somehost.net", result.standardHeaders.get("Host"));
+        Assert.assertEquals("value", result.otherHeaders.get("X-Custom"));
+
+        final String response = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n";
+        Assert.assertTrue(server.write(ByteBuffer.wrap(response.getBytes())));
+        final StringBuilder received = new StringBuilder();
+        for (int i = 0; i < 10 && received.length() < response.length(); ++i) {
+            toClient.deliver(i % 2 == 0);
+            BufferPool.PooledBuffer plaintext;
+            while ((plaintext = client.read()) != null) {
+                received.append(StandardCharsets.ISO_8859_1.decode(plaintext.getBuffer()));
+                plaintext.release();
+            }
+        }
+        Assert.assertEquals(response, received.toString());
+
+        //a close_notify that the channel only takes part of is kept until a later call has written the rest
+        toClient.writable = 10;
+        Assert.assertFalse(server.close());
+        toClient.writable = Integer.MAX_VALUE;
+        Assert.assertTrue(server.close());
+        //and it is only seen once all of its record has arrived
+        toClient.deliver(true);
+        Assert.assertNull(client.read());
+        Assert.assertFalse(client.isClosed());
+        toClient.deliver(false);
+        Assert.assertNull(client.read());
+        Assert.assertTrue(client.isClosed());
+        Assert.assertTrue(clientEngine.isInboundDone());
+        Assert.assertTrue(client.close());
+
+        //every buffer went back to the pool, so all of them can be allocated without another slab
+        final long slabs = pool.getSlabCount();
+        final BufferPool.PooledBuffer[] buffers = new BufferPool.PooledBuffer[(int) slabs * 8];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = pool.allocate();
+        }
+        Assert.assertEquals(slabs, pool.getSlabCount());
+        for (BufferPool.PooledBuffer buffer : buffers) {
+            buffer.release();
+        }
+    }
+
+    /**
+     * One direction of an in memory connection. What is written is held back until the test delivers it, so the
+     * test decides where the reader sees the ciphertext end.
+     */
+    private static final class Wire {
+        final ByteBuffer written = ByteBuffer.allocate(64 * 1024);
+        final ByteBuffer delivered = ByteBuffer.allocate(64 * 1024);
+        /**
+         * The bytes of a record that has been partly delivered that are still to come
+         */
+        int recordRemaining;
+        /**
+         * The number of bytes the channel will still take
+         */
+        int writable = Integer.MAX_VALUE;
+
+        /**
+         * Delivers the written bytes up to the end of the next TLS record, or half way through it
+         */
+        void deliver(final boolean midRecord) {
+            written.flip();
+            int record = recordRemaining;
+            if (record == 0) {
+                //the length is in the last two bytes of the five byte record header
+                record = written.remaining() < 5 ? written.remaining() : 5 + ((written.get(3) & 0xFF) << 8 | (written.get(4) & 0xFF));
+            }
+            final int length = Math.min(written.remaining(), midRecord ? (record + 1) / 2 : record);
+            recordRemaining = record - length;
+            final ByteBuffer chunk = written.duplicate();
+            chunk.limit(length);
+            delivered.put(chunk);
+            written.position(length);
+            written.compact();
+        }
+    }
+
+    private static final class WireChannel implements ByteChannel {
+        private final Wire in;
+        private final Wire out;
+
+        WireChannel(final Wire in, final Wire out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) {
+            in.delivered.flip();
+            final int length = Math.min(dst.remaining(), in.delivered.remaining());
+            final ByteBuffer chunk = in.delivered.duplicate();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            in.delivered.position(in.delivered.position() + length);
+            in.delivered.compact();
+            return length;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int length = Math.min(src.remaining(), out.writable);
+            final ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + length);
+            out.written.put(chunk);
+            src.position(src.position() + length);
+            out.writable -= length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.httpparser;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays a capture that was recorded with {@link TrafficCapture} through a tokenizer, and reports the parse
+ * throughput and allocation. This is not a test, it is run from the command line with the test classpath:
+ * <p/>
+ * <code>java -cp ... org.httpparser.TrafficReplay capture-file [threads] [passes] [generated|interpreted|tiered]</code>
+ * <p/>
+ * Every thread replays the whole capture, with its own state for each connection. When a request is complete
+ * the body that follows it is skipped according to its <code>Content-Length</code>, so pipelined requests are
+ * parsed as they would be by the server. The rest of a connection that sent a chunked body is not replayed,
+ * as there is no chunked decoder to find the end of the body.
+ *
+ * @author Stuart Douglas
+ */
+public class TrafficReplay {
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: TrafficReplay capture-file [threads] [passes] [generated|interpreted|tiered]");
+            System.exit(1);
+        }
+        final List<TrafficCapture.Fragment> fragments = TrafficCapture.read(new File(args[0]));
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        final int passes = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        final String type = args.length > 3 ? args[3] : "generated";
+
+        final Tokenizer tokenizer;
+        if (type.equals("interpreted")) {
+            tokenizer = TokenizerGenerator.createInterpretedTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES);
+        } else if (type.equals("tiered")) {
+            tokenizer = TokenizerGenerator.createTieredTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES);
+        } else {
+            tokenizer = TokenizerGenerator.createTokenizer(SimpleTest.VERBS, SimpleTest.VERSIONS, SimpleTest.HEADER_VALUES);
+        }
+
+        final Replay[] replays = new Replay[threads];
+        final Thread[] running = new Thread[threads];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        for (int i = 0; i < threads; ++i) {
+            final Replay replay = replays[i] = new Replay(tokenizer, fragments);
+            running[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //warm up before the measured passes start together
+                    for (int j = 0; j < Math.max(passes / 10, 1); ++j) {
+                        replay.pass();
+                    }
+                    replay.requests = 0;
+                    replay.bytes = 0;
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    final long allocated = allocatedBytes();
+                    final long start = System.nanoTime();
+                    for (int j = 0; j < passes; ++j) {
+                        replay.pass();
+                    }
+                    replay.time = System.nanoTime() - start;
+                    replay.allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+                }
+            }, "replay-" + i);
+            running[i].start();
+        }
+        ready.await();
+        go.countDown();
+        long requests = 0;
+        long bytes = 0;
+        long time = 0;
+        long allocated = 0;
+        for (int i = 0; i < threads; ++i) {
+            running[i].join();
+            requests += replays[i].requests;
+            bytes += replays[i].bytes;
+            time = Math.max(time, replays[i].time);
+            allocated = allocated < 0 || replays[i].allocated < 0 ? -1 : allocated + replays[i].allocated;
+        }
+        System.out.println(String.format("%s: %d fragments, %d threads, %d requests in %dms, %.0f requests/s, %.1fMB/s",
+                type, fragments.size(), threads, requests, time / 1000000, requests * 1000000000.0 / time, (bytes * 1000.0) / time));
+        if (allocated >= 0 && requests > 0) {
+            System.out.println(String.format("allocated %.1f bytes/request", (double) allocated / requests));
+        }
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The replay of a capture on a single thread. The fragment views and connection state are created up front, and
+     * the state and handler of a connection are reset rather than replaced after each request, so the only allocation
+     * in a pass is what the tokenizer and handler do for each request.
+     */
+    static final class Replay {
+        private final Tokenizer tokenizer;
+        private final ByteBuffer[] fragments;
+        private final int[] connections;
+        private final Connection[] state;
+
+        long requests;
+        long bytes;
+        long time;
+        long allocated;
+
+        Replay(final Tokenizer tokenizer, final List<TrafficCapture.Fragment> fragments) {
+            this.tokenizer = tokenizer;
+            this.fragments = new ByteBuffer[fragments.size()];
+            this.connections = new int[fragments.size()];
+            final Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+            for (int i = 0; i < fragments.size(); ++i) {
+                final TrafficCapture.Fragment fragment = fragments.get(i);
+                this.fragments[i] = fragment.getBytes();
+                Integer index = ids.get(fragment.getConnection());
+                if (index == null) {
+                    ids.put(fragment.getConnection(), index = ids.size());
+                }
+                connections[i] = index;
+            }
+            this.state = new Connection[ids.size()];
+            for (int i = 0; i < state.length; ++i) {
+                state[i] = new Connection();
+            }
+        }
+
+        /**
+         * Replays the whole capture once
+         */
+        void pass() {
+            for (Connection connection : state) {
+                connection.reset();
+            }
+            for (int i = 0; i < fragments.length; ++i) {
+                final Connection connection = state[connections[i]];
+                final ByteBuffer buffer = fragments[i];
+                buffer.clear();
+                bytes += buffer.remaining();
+                while (buffer.hasRemaining() && !connection.skip) {
+                    if (connection.body > 0) {
+                        final int skipped = (int) Math.min(connection.body, buffer.remaining());
+                        buffer.position(buffer.position() + skipped);
+                        connection.body -= skipped;
+                        continue;
+                    }
+                    final int remaining = tokenizer.handle(buffer, buffer.remaining(), connection.tokenState, connection.exchange);
+                    if (connection.tokenState.state != TokenState.PARSE_COMPLETE) {
+                        //the tokenizer either needs more bytes, or has stopped
+                        connection.skip = remaining != 0;
+                        break;
+                    }
+                    ++requests;
+                    final HttpExchangeBuilder exchange = connection.exchange;
+                    if ((exchange.getFlags() & (HttpExchangeBuilder.TRANSFER_ENCODING_CHUNKED | HttpExchangeBuilder.TRANSFER_ENCODING_OTHER)) != 0) {
+                        connection.skip = true;
+                    } else if (exchange.getContentLength() > 0) {
+                        connection.body = exchange.getContentLength();
+                    }
+                    connection.tokenState.reset();
+                    connection.exchange.reset();
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        final TokenState tokenState = new TokenState();
+        final HttpExchangeBuilder exchange = new HttpExchangeBuilder();
+        long body;
+        boolean skip;
+
+        void reset() {
+            tokenState.reset();
+            exchange.reset();
+            body = 0;
+            skip = false;
+        }
+    }
+}